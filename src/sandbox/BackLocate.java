@@ -22,10 +22,14 @@ package sandbox;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.io.StringReader;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -35,9 +39,17 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.SAXParser;
@@ -60,7 +72,19 @@ public class BackLocate
 	private String genomeVersion="hg19";
 	private Connection connection;
 	private GenomicSequence genomicSeq=null;
-	private DasSequenceProvider dasServer=new DasSequenceProvider();
+	private SequenceProvider dasServer=null;
+	/** local knownGene dump (batch mode) */
+	private File knownGeneFile=null;
+	/** local kgXref dump (batch mode) */
+	private File kgXrefFile=null;
+	/** local indexed fasta (batch mode) */
+	private File fastaFile=null;
+	/** max number of regions kept in the fasta cache */
+	private int fastaCacheSize=100;
+	/** transcript name to its CDS/genome coordinate map */
+	private Map<String,CodingMap> codingMaps=new HashMap<String,CodingMap>();
+	/** geneSymbol to knownGene in batch mode */
+	private Map<String,List<KnownGene>> symbol2genes=null;
 	private static final GeneticCode STANDARD=new GeneticCode()
 		{
 		@Override
@@ -247,26 +271,90 @@ public class BackLocate
 		}
 
 	
+	/**
+	 * CDS to genome coordinates of a transcript. One segment per coding exon
+	 * in the orientation of the transcript; a position in the cDNA is mapped
+	 * with a binary search on the cumulative lengths of the segments.
+	 */
+	static private class CodingMap
+		{
+		/** genomic position of the first base of each segment */
+		private int segmentStart[];
+		/** index in the cDNA of the first base of each segment */
+		private int cumulOffset[];
+		private int length=0;
+		private int sign;
+		
+		CodingMap(KnownGene gene)
+			{
+			int n=gene.getExonCount();
+			this.segmentStart=new int[n];
+			this.cumulOffset=new int[n];
+			this.sign=(gene.isForward()?1:-1);
+			int count=0;
+			for(int k=0;k< n;++k)
+				{
+				int exon_index=(gene.isForward()?k:n-1-k);
+				int start=Math.max(gene.getExonStart(exon_index),gene.getCdsStart());
+				int end=Math.min(gene.getExonEnd(exon_index),gene.getCdsEnd());
+				if(start>=end) continue;
+				this.segmentStart[count]=(gene.isForward()?start:end-1);
+				this.cumulOffset[count]=this.length;
+				this.length+=(end-start);
+				count++;
+				}
+			this.segmentStart=Arrays.copyOf(this.segmentStart, count);
+			this.cumulOffset=Arrays.copyOf(this.cumulOffset, count);
+			}
+		
+		public int length()
+			{
+			return this.length;
+			}
+		
+		/** convert an index in the cDNA to a position on the genome */
+		public int getGenomicPosition(int rnaIndex0)
+			{
+			if(rnaIndex0<0 || rnaIndex0>=this.length)
+				{
+				throw new IndexOutOfBoundsException("index:"+rnaIndex0);
+				}
+			int lo=0,hi=this.cumulOffset.length-1;
+			while(lo< hi)
+				{
+				int mid=(lo+hi+1)>>>1;
+				if(this.cumulOffset[mid]<=rnaIndex0) lo=mid;
+				else hi=mid-1;
+				}
+			return this.segmentStart[lo]+this.sign*(rnaIndex0-this.cumulOffset[lo]);
+			}
+		}
+	
 	static private class RNASequence extends AbstractCharSeq
 		{
-		List<Integer> genomicPositions=new ArrayList<Integer>();
+		CodingMap codingMap;
 		GenomicSequence genomic;
 		char strand;
-		RNASequence(GenomicSequence genomic,char strand)
+		RNASequence(GenomicSequence genomic,char strand,CodingMap codingMap)
 			{
 			this.genomic=genomic;
 			this.strand=strand;
+			this.codingMap=codingMap;
+			}
+		public int getGenomicPosition(int i)
+			{
+			return this.codingMap.getGenomicPosition(i);
 			}
 		@Override
 		public char charAt(int i)
 			{
-			char c=genomic.charAt(this.genomicPositions.get(i));
+			char c=genomic.charAt(getGenomicPosition(i));
 			return (strand=='+'?c:complement(c));
 			}
 		@Override
 		public int length()
 			{
-			return genomicPositions.size();
+			return this.codingMap.length();
 			}
 		}
 
@@ -297,11 +385,19 @@ static private class ProteinCharSequence extends AbstractCharSeq
 }
 
 
+	/** something that can fetch a genomic region */
+	static private interface SequenceProvider
+		{
+		public GenomicSequence getSequence(String chrom, int chromStart0, int chromEnd0)
+			throws IOException;
+		}
+
 	/**
 	 * Calls Ucsc DAS to fetch a DNA sequence using a SAX parser
 	 */
 	private class DasSequenceProvider
 		extends DefaultHandler
+		implements SequenceProvider
 		{
 		private ByteArrayOutputStream baos=null;
 		int reserve=100000;
@@ -357,6 +453,7 @@ static private class ProteinCharSequence extends AbstractCharSeq
 	        }
 	
 	
+		@Override
 		public GenomicSequence getSequence(String chrom, int chromStart0, int chromEnd0)
 				throws IOException
 			{
@@ -394,6 +491,97 @@ static private class ProteinCharSequence extends AbstractCharSeq
 		
 		}
 
+	/**
+	 * Reads regions from a local fasta file indexed with 'samtools faidx'.
+	 * The last fetched regions are kept in a LRU cache.
+	 */
+	private static class IndexedFastaSequenceProvider
+		implements SequenceProvider,Closeable
+		{
+		/** one line of the .fai file */
+		private static class FaiEntry
+			{
+			long length;
+			long offset;
+			int lineBases;
+			int lineWidth;
+			}
+		private RandomAccessFile fasta;
+		private Map<String,FaiEntry> index=new HashMap<String,FaiEntry>();
+		private Map<String,GenomicSequence> cache;
+		
+		IndexedFastaSequenceProvider(File fastaFile,final int cacheSize)
+			throws IOException
+			{
+			File fai=new File(fastaFile.getParentFile(),fastaFile.getName()+".fai");
+			BufferedReader in=new BufferedReader(new FileReader(fai));
+			String line;
+			while((line=in.readLine())!=null)
+				{
+				if(line.isEmpty()) continue;
+				String tokens[]=line.split("[\t]");
+				if(tokens.length<5) throw new IOException("Bad fai line in "+fai+" : "+line);
+				FaiEntry e=new FaiEntry();
+				e.length=Long.parseLong(tokens[1]);
+				e.offset=Long.parseLong(tokens[2]);
+				e.lineBases=Integer.parseInt(tokens[3]);
+				e.lineWidth=Integer.parseInt(tokens[4]);
+				this.index.put(tokens[0], e);
+				}
+			in.close();
+			this.fasta=new RandomAccessFile(fastaFile, "r");
+			this.cache=new LinkedHashMap<String,GenomicSequence>(cacheSize+1,0.75f,true)
+				{
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,GenomicSequence> eldest)
+					{
+					return size()>cacheSize;
+					}
+				};
+			}
+		
+		@Override
+		public GenomicSequence getSequence(String chrom, int chromStart0, int chromEnd0)
+			throws IOException
+			{
+			if(chromStart0 <0 || chromStart0 >=chromEnd0)
+				{
+				throw new IllegalArgumentException("Error in start/end");
+				}
+			String key=chrom+":"+chromStart0+"-"+chromEnd0;
+			GenomicSequence g=this.cache.get(key);
+			if(g!=null) return g;
+			FaiEntry e=this.index.get(chrom);
+			if(e==null) throw new IOException("Chromosome "+chrom+" is not in the fasta index");
+			int end=(int)Math.min(chromEnd0, e.length);
+			if(chromStart0>=end) throw new IOException("Bad region "+key);
+			long startByte=e.offset+(chromStart0/e.lineBases)*(long)e.lineWidth+(chromStart0%e.lineBases);
+			long endByte=e.offset+((end-1)/e.lineBases)*(long)e.lineWidth+((end-1)%e.lineBases)+1;
+			byte raw[]=new byte[(int)(endByte-startByte)];
+			this.fasta.seek(startByte);
+			this.fasta.readFully(raw);
+			byte array[]=new byte[end-chromStart0];
+			int n=0;
+			for(byte b:raw)
+				{
+				if(Character.isWhitespace(b)) continue;
+				array[n++]=(byte)Character.toUpperCase(b);
+				}
+			if(n!=array.length) throw new IOException("Cannot read "+key+" from fasta");
+			g=new GenomicSequence(array, chrom, chromStart0);
+			this.cache.put(key, g);
+			return g;
+			}
+		
+		@Override
+		public void close() throws IOException
+			{
+			this.cache.clear();
+			this.fasta.close();
+			}
+		}
+
 /**
  * 
  * KnownGene
@@ -415,6 +603,37 @@ private class KnownGene
 		
 		
 		
+			/**
+			 * 
+			 * KnownGene from a line of a UCSC knownGene.txt dump
+			 * 
+			 */
+			public KnownGene(String tokens[])
+				throws IOException
+				{
+				if(tokens.length<10) throw new IOException("Expected at least 10 columns in knownGene");
+				this.name = tokens[0];
+				this.chrom= tokens[1];
+		        this.strand = tokens[2].charAt(0);
+		        this.txStart = Integer.parseInt(tokens[3]);
+		        this.txEnd = Integer.parseInt(tokens[4]);
+		        this.cdsStart= Integer.parseInt(tokens[5]);
+		        this.cdsEnd= Integer.parseInt(tokens[6]);
+		        int exonCount=Integer.parseInt(tokens[7]);
+		        this.exonStarts = new int[exonCount];
+		        this.exonEnds = new int[exonCount];
+	            int index=0;
+	            for(String s: tokens[8].split("[,]"))
+	            	{
+	            	this.exonStarts[index++]=Integer.parseInt(s);
+	            	}
+	            index=0;
+	            for(String s: tokens[9].split("[,]"))
+	            	{
+	            	this.exonEnds[index++]=Integer.parseInt(s);
+	            	}
+				}
+			
 			/**
 			 * 
 			 * KnownGene 
@@ -573,70 +792,17 @@ private class KnownGene
 	        		
 	        		
 	        		
-	     if(gene.isForward())
-    		{    		
-    		int exon_index=0;
-    		while(exon_index< gene.getExonCount())
-    			{
-    			for(int i= gene.getExonStart(exon_index);
-    					i< gene.getExonEnd(exon_index);
-    					++i)
-    				{
-    				if(i< gene.getCdsStart()) continue;
-    				if(i>=gene.getCdsEnd()) break;
-					
-					if(wildRNA==null)
-						{
-						wildRNA=new RNASequence(genomicSeq,'+');
-						}
-
-    				wildRNA.genomicPositions.add(i);
-    				
-    				
-    				
-    				if(wildRNA.length()%3==0 && wildRNA.length()>0 && wildProt==null)
-        				{
-        				wildProt=new ProteinCharSequence(geneticCode,wildRNA);
-        				}
-    				}
-    			++exon_index;
-    			}
-    		
-    		
-    		
-    		}
-	   else // reverse orientation
-    		{
-    		int exon_index = gene.getExonCount()-1;
-    		while(exon_index >=0)
-    			{
-    			for(int i= gene.getExonEnd(exon_index)-1;
-    				    i>= gene.getExonStart(exon_index);
-    				--i)
-    				{
-    				if(i>= gene.getCdsEnd()) continue;
-    				if(i<  gene.getCdsStart()) break;
-    				
-    				if(wildRNA==null)
-						{
-						wildRNA=new RNASequence(genomicSeq,'-');
-						}
-    				
-    				
-    				
-    				wildRNA.genomicPositions.add(i);
-    				if( wildRNA.length()%3==0 &&
-    					wildRNA.length()>0 &&
-    					wildProt==null)
-        				{
-        				wildProt=new ProteinCharSequence(geneticCode,wildRNA);
-        				}
-    				
-    				}
-    			--exon_index;
-    			}
-
-    		}//end of if reverse
+	     CodingMap codingMap=this.codingMaps.get(gene.getName());
+	     if(codingMap==null)
+	    	 {
+	    	 codingMap=new CodingMap(gene);
+	    	 this.codingMaps.put(gene.getName(), codingMap);
+	    	 }
+	     if(codingMap.length()>=3)
+	    	 {
+	    	 wildRNA=new RNASequence(genomicSeq,gene.getStrand(),codingMap);
+	    	 wildProt=new ProteinCharSequence(geneticCode,wildRNA);
+	    	 }
 	        		
 	     if(wildProt==null)
 	    	 {
@@ -693,9 +859,9 @@ private class KnownGene
         	System.out.print('\t');
         	System.out.print(gene.getChromosome());
         	System.out.print('\t');
-        	System.out.print(wildRNA.genomicPositions.get(indexInRna));
+        	System.out.print(wildRNA.getGenomicPosition(indexInRna));
         	System.out.print('\t');
-        	System.out.print(gene.getExonNameFromGenomicIndex(wildRNA.genomicPositions.get(indexInRna)));
+        	System.out.print(gene.getExonNameFromGenomicIndex(wildRNA.getGenomicPosition(indexInRna)));
         	if(this.printSequences)
         		{
         		String s=wildRNA.toString();
@@ -725,22 +891,145 @@ private class KnownGene
 			}
 		}
 	
+	/** a mutation on a protein, as read from the input */
+	private static class Mutation
+		{
+		String geneName;
+		char aa1;
+		char aa2;
+		int position1;
+		}
+	
+	/** a mutation mapped to one transcript, used by the batch mode */
+	private static class MappedMutation
+		{
+		KnownGene gene;
+		Mutation mutation;
+		MappedMutation(KnownGene gene,Mutation mutation)
+			{
+			this.gene=gene;
+			this.mutation=mutation;
+			}
+		}
+	
+	/** parse a 'GENE\tA123B' line, returns null for comments and blank lines */
+	private static Mutation parseMutation(String line) throws IOException
+		{
+		if(line.startsWith("#") || line.trim().isEmpty()) return null;
+		int n=line.indexOf('\t');
+		if(n==0 || n==-1) throw new IOException("Bad line. No tab found in "+line);
+		Mutation m=new Mutation();
+		m.geneName=line.substring(0,n).trim();
+		if(m.geneName.isEmpty()) throw new IOException("Bad line. No gene in "+line);
+		String mut=line.substring(n+1).trim();
+		if(!mut.matches("[A-Za-z\\*][0-9]+[A-Za-z\\*]")) throw new IOException("Bad mutation  in "+line);
+		m.aa1= mut.substring(0,1).toUpperCase().charAt(0);
+		m.aa2= mut.substring(mut.length()-1).toUpperCase().charAt(0);
+		m.position1=Integer.parseInt(mut.substring(1,mut.length()-1));
+		if(m.position1==0) throw new IOException("Bad position  in "+line);
+		return m;
+		}
+	
+	private static BufferedReader openDump(File f) throws IOException
+		{
+		InputStream in=new FileInputStream(f);
+		if(f.getName().endsWith(".gz")) in=new GZIPInputStream(in);
+		return new BufferedReader(new InputStreamReader(in));
+		}
+	
+	/** load the local knownGene/kgXref dumps into memory */
+	private void loadTranscriptIndex() throws IOException
+		{
+		Pattern tab=Pattern.compile("[\t]");
+		Map<String,KnownGene> name2gene=new HashMap<String,KnownGene>();
+		LOG.info("reading "+this.knownGeneFile);
+		BufferedReader in=openDump(this.knownGeneFile);
+		String line;
+		while((line=in.readLine())!=null)
+			{
+			if(line.startsWith("#") || line.isEmpty()) continue;
+			KnownGene kg=new KnownGene(tab.split(line));
+			name2gene.put(kg.getName(), kg);
+			}
+		in.close();
+		
+		this.symbol2genes=new HashMap<String,List<KnownGene>>();
+		LOG.info("reading "+this.kgXrefFile);
+		in=openDump(this.kgXrefFile);
+		while((line=in.readLine())!=null)
+			{
+			if(line.startsWith("#") || line.isEmpty()) continue;
+			String tokens[]=tab.split(line);
+			if(tokens.length<5) throw new IOException("Expected at least 5 columns in kgXref: "+line);
+			KnownGene kg=name2gene.get(tokens[0]);
+			if(kg==null) continue;
+			List<KnownGene> L=this.symbol2genes.get(tokens[4]);
+			if(L==null)
+				{
+				L=new ArrayList<KnownGene>();
+				this.symbol2genes.put(tokens[4], L);
+				}
+			if(!L.contains(kg)) L.add(kg);
+			}
+		in.close();
+		LOG.info("loaded "+name2gene.size()+" transcripts for "+this.symbol2genes.size()+" symbols");
+		}
+	
+	/** batch mode: all the mutations are read, mapped and sorted by locus before being processed */
+	private void runBatch(List<BufferedReader> inputs) throws IOException
+		{
+		List<MappedMutation> mapped=new ArrayList<MappedMutation>();
+		for(BufferedReader in:inputs)
+			{
+			String line;
+			while((line=in.readLine())!=null)
+				{
+				Mutation m=parseMutation(line);
+				if(m==null) continue;
+				List<KnownGene> genes=this.symbol2genes.get(m.geneName);
+				if(genes==null)
+					{
+					System.err.println("No kgXref found for "+m.geneName);
+					continue;
+					}
+				for(KnownGene kg:genes)
+					{
+					mapped.add(new MappedMutation(kg, m));
+					}
+				}
+			}
+		Collections.sort(mapped,new Comparator<MappedMutation>()
+			{
+			@Override
+			public int compare(MappedMutation o1, MappedMutation o2)
+				{
+				int i=o1.gene.getChromosome().compareTo(o2.gene.getChromosome());
+				if(i!=0) return i;
+				i=o1.gene.getTxStart()-o2.gene.getTxStart();
+				if(i!=0) return i;
+				i=o1.gene.getName().compareTo(o2.gene.getName());
+				if(i!=0) return i;
+				return o1.mutation.position1-o2.mutation.position1;
+				}
+			});
+		for(MappedMutation mm:mapped)
+			{
+			Mutation m=mm.mutation;
+			backLocate(mm.gene, m.geneName, m.aa1, m.aa2, m.position1);
+			}
+		}
+	
 	private void run(BufferedReader in) throws IOException,SQLException
 		{
 		String line;
 		while((line=in.readLine())!=null)
 			{
-			if(line.startsWith("#") || line.trim().isEmpty()) continue;
-			int n=line.indexOf('\t');
-			if(n==0 || n==-1) throw new IOException("Bad line. No tab found in "+line);
-			String geneName=line.substring(0,n).trim();
-			if(geneName.isEmpty()) throw new IOException("Bad line. No gene in "+geneName);
-			String mut=line.substring(n+1).trim();
-			if(!mut.matches("[A-Za-z\\*][0-9]+[A-Za-z\\*]")) throw new IOException("Bad mutation  in "+line);
-			char aa1= mut.substring(0,1).toUpperCase().charAt(0);
-			char aa2= mut.substring(mut.length()-1).toUpperCase().charAt(0);
-			int position1=Integer.parseInt(mut.substring(1,mut.length()-1));
-			if(position1==0) throw new IOException("Bad position  in "+line);
+			Mutation m=parseMutation(line);
+			if(m==null) continue;
+			String geneName=m.geneName;
+			char aa1= m.aa1;
+			char aa2= m.aa2;
+			int position1=m.position1;
 			Set<String> kgIds=new HashSet<String>();
 			PreparedStatement pstmt=connection.prepareStatement("select kgID from kgXref where geneSymbol=?");
 			pstmt.setString(1, geneName);
@@ -790,6 +1079,10 @@ private class KnownGene
 					System.out.println("Options:");
 					System.out.println(" -b ucsc.build default:"+ app.genomeVersion);
 					System.out.println(" -p print mRNA & protein sequences");
+					System.out.println(" -kg <knownGene.txt[.gz]> local knownGene dump. Requires -xref. Enables the batch mode (no SQL query; mutations are sorted by locus)");
+					System.out.println(" -xref <kgXref.txt[.gz]> local kgXref dump. Requires -kg");
+					System.out.println(" -R <fasta> local genome indexed with samtools faidx, used instead of the UCSC DAS server");
+					System.out.println(" -cache <int> number of regions kept in memory for -R. default:"+app.fastaCacheSize);
 					System.out.println(" -log  <level> one value from "+Level.class.getName()+" default:"+LOG.getLevel());
 					System.out.println(" -proxyHost <host>");
 					System.out.println(" -proxyPort <port>");
@@ -805,6 +1098,22 @@ private class KnownGene
 					{
 					app.printSequences=true;
 					}
+				else if(args[optind].equals("-kg"))
+					{
+					app.knownGeneFile=new File(args[++optind]);
+					}
+				else if(args[optind].equals("-xref"))
+					{
+					app.kgXrefFile=new File(args[++optind]);
+					}
+				else if(args[optind].equals("-R"))
+					{
+					app.fastaFile=new File(args[++optind]);
+					}
+				else if(args[optind].equals("-cache"))
+					{
+					app.fastaCacheSize=Integer.parseInt(args[++optind]);
+					}
 				else if(args[optind].equals("-log") ||
 						args[optind].equals("--log") || 
 						args[optind].equals("-debug"))
@@ -847,12 +1156,34 @@ private class KnownGene
 				System.setProperty("http.proxyPort", proxyPort);
 				}
 			
-			Class.forName("com.mysql.jdbc.Driver");
-			app.connection=DriverManager.getConnection(
-				"jdbc:mysql://genome-mysql.cse.ucsc.edu/"+
-				app.genomeVersion+
-				"?user=genome&password="
-				);
+			if((app.knownGeneFile==null)!=(app.kgXrefFile==null))
+				{
+				System.err.println("Options -kg and -xref must be used together");
+				return;
+				}
+			
+			if(app.fastaFile!=null)
+				{
+				app.dasServer=new IndexedFastaSequenceProvider(app.fastaFile,app.fastaCacheSize);
+				}
+			else
+				{
+				app.dasServer=app.new DasSequenceProvider();
+				}
+			
+			if(app.knownGeneFile!=null)
+				{
+				app.loadTranscriptIndex();
+				}
+			else
+				{
+				Class.forName("com.mysql.jdbc.Driver");
+				app.connection=DriverManager.getConnection(
+					"jdbc:mysql://genome-mysql.cse.ucsc.edu/"+
+					app.genomeVersion+
+					"?user=genome&password="
+					);
+				}
 			System.out.print("#User.Gene");
         	System.out.print('\t');
         	System.out.print("AA1");
@@ -886,7 +1217,24 @@ private class KnownGene
             	System.out.print("protein");
         		}
         	System.out.println();
-			if(optind==args.length)
+			if(app.symbol2genes!=null)
+				{
+				List<BufferedReader> inputs=new ArrayList<BufferedReader>();
+				if(optind==args.length)
+					{
+					LOG.info("reading from stdin");
+					inputs.add(new BufferedReader(new InputStreamReader(System.in)));
+					}
+				while(optind<args.length)
+					{
+					String filename=args[optind++];
+					LOG.info("reading from "+filename);
+					inputs.add(new BufferedReader(new FileReader(filename)));
+					}
+				app.runBatch(inputs);
+				for(BufferedReader in:inputs) in.close();
+				}
+			else if(optind==args.length)
 				{
 				LOG.info("reading from stdin");
 				app.run(new BufferedReader(new InputStreamReader(System.in)));
@@ -913,6 +1261,11 @@ private class KnownGene
 				try {app.connection.close();}
 				catch(SQLException err){}
 				}
+			if(app.dasServer instanceof Closeable)
+				{
+				try {Closeable.class.cast(app.dasServer).close();}
+				catch(IOException err){}
+				}
 			}	
 		}
 	}
\ No newline at end of file
@@ -15,9 +15,18 @@ import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -36,6 +45,7 @@ import sandbox.ncbi.gbc.INSDInterval;
 import sandbox.ncbi.gbc.INSDQualifier;
 import sandbox.ncbi.gbc.INSDSeq;
 import sandbox.ncbi.gbc.INSDSeqFeatureTable;
+import sandbox.ncbi.gbc.INSDSeqid;
 import sandbox.ncbi.gbc.INSDSet;
 
 /**
@@ -49,8 +59,23 @@ public class BlastAnnotation
 	private int fastaLineLength=50;
 	/** xml parser */
 	private DocumentBuilder docBuilder;
-	/** transforms XML/DOM to GBC entry */
-	private Unmarshaller gbcUnmarshaller;
+	/** factory for the parsers used by the fetching threads */
+	private DocumentBuilderFactory docBuilderFactory;
+	/** JAXB context for genbank */
+	private JAXBContext gbcContext;
+	/** number of gi per efetch request */
+	private int batchSize=50;
+	/** number of threads fetching the annotations */
+	private int nThreads=4;
+	/** directory where the annotations are stored, or null */
+	private File cacheDir=null;
+	/** don't query the NCBI, only use the cache */
+	private boolean offline=false;
+	/** fetches the annotations */
+	private ExecutorService executor=null;
+	/** gi to the batch of annotations containing this gi; released once the iteration using it is printed */
+	private Map<String,Future<Map<String,List<INSDFeature>>>> gi2batch=
+			new HashMap<String,Future<Map<String,List<INSDFeature>>>>();
 	
 	/** abstract class writing the line of an alignment */
 	private abstract class AbstractHspPrinter
@@ -256,8 +281,17 @@ public class BlastAnnotation
 		f.setExpandEntityReferences(true);
 		f.setIgnoringComments(false);
 		f.setIgnoringElementContentWhitespace(true);
-		this.docBuilder= f.newDocumentBuilder();
-		this.docBuilder.setEntityResolver(new EntityResolver()
+		this.docBuilderFactory=f;
+		this.docBuilder= newDocumentBuilder();
+		//create a JAXB context for genbank
+		this.gbcContext = JAXBContext.newInstance("sandbox.ncbi.gbc");
+		}
+	
+	/** creates a new DOM parser ignoring the DTDs */
+	private synchronized DocumentBuilder newDocumentBuilder() throws Exception
+		{
+		DocumentBuilder builder=this.docBuilderFactory.newDocumentBuilder();
+		builder.setEntityResolver(new EntityResolver()
 			{
 			@Override
 			public InputSource resolveEntity(String publicId, String systemId)
@@ -266,30 +300,181 @@ public class BlastAnnotation
 				return new InputSource(new StringReader(""));
 				}
 			});
-		//create a Unmarshaller for genbank
-		JAXBContext jc = JAXBContext.newInstance("sandbox.ncbi.gbc");
-		this.gbcUnmarshaller=jc.createUnmarshaller();
+		return builder;
 		}
 	
-	
-	/** fetches the annotation for a given entry if the name starts with gi|.... */
-	private List<INSDFeature> fetchAnnotations(String name)
-		throws Exception
+	/** returns the gi if the name starts with gi|...., or null */
+	private static String extractGi(String name)
 		{
 		int pipe;
 		if(name!=null &&
 		name.startsWith("gi|") &&
 		(pipe=name.indexOf('|',3))!=-1)
 			{
-			String gi=name.substring(3,pipe);
-			String uri="http://www.ncbi.nlm.nih.gov/entrez/eutils/efetch.fcgi?db=protein&id="+gi+"&rettype=gbc&retmode=xml";
-			INSDSet set=INSDSet.class.cast(this.gbcUnmarshaller.unmarshal(this.docBuilder.parse(uri)));
-			if(!set.getINSDSeq().isEmpty())
+			return name.substring(3,pipe);
+			}
+		return null;
+		}
+	
+	/** returns the gi of a sequence from its INSDSeq_other-seqids, or null */
+	private static String findGi(INSDSeq seq)
+		{
+		if(seq.getINSDSeqOtherSeqids()==null) return null;
+		for(INSDSeqid seqid:seq.getINSDSeqOtherSeqids().getINSDSeqid())
+			{
+			String s=seqid.getvalue();
+			if(s!=null && s.startsWith("gi|")) return s.substring(3);
+			}
+		return null;
+		}
+	
+	private File getCacheFile(String gi)
+		{
+		return new File(this.cacheDir,gi+".xml");
+		}
+	
+	/**
+	 * fetches the features for a batch of gi. The features are first searched
+	 * in the cache directory, the other ones are fetched in one efetch request
+	 * and saved in the cache.
+	 */
+	private Map<String,List<INSDFeature>> fetchBatch(List<String> gis)
+		throws Exception
+		{
+		Map<String,List<INSDFeature>> gi2features=new HashMap<String,List<INSDFeature>>();
+		DocumentBuilder builder=newDocumentBuilder();
+		Unmarshaller unmarshaller=this.gbcContext.createUnmarshaller();
+		StringBuilder ids=new StringBuilder();
+		List<String> requested=new ArrayList<String>();
+		for(String gi:gis)
+			{
+			if(this.cacheDir!=null && getCacheFile(gi).exists())
+				{
+				INSDSet set=INSDSet.class.cast(unmarshaller.unmarshal(builder.parse(getCacheFile(gi))));
+				for(INSDSeq seq:set.getINSDSeq())
+					{
+					INSDSeqFeatureTable table=seq.getINSDSeqFeatureTable();
+					gi2features.put(gi, table==null?new ArrayList<INSDFeature>():table.getINSDFeature());
+					}
+				continue;
+				}
+			if(this.offline) continue;
+			if(ids.length()>0) ids.append(',');
+			ids.append(gi);
+			requested.add(gi);
+			}
+		if(ids.length()==0) return gi2features;
+		
+		String uri="http://www.ncbi.nlm.nih.gov/entrez/eutils/efetch.fcgi?db=protein&id="+ids+"&rettype=gbc&retmode=xml";
+		INSDSet set=INSDSet.class.cast(unmarshaller.unmarshal(builder.parse(uri)));
+		Marshaller marshaller=(this.cacheDir==null?null:this.gbcContext.createMarshaller());
+		List<INSDSeq> seqs=set.getINSDSeq();
+		for(int i=0;i< seqs.size();++i)
+			{
+			INSDSeq seq=seqs.get(i);
+			String gi=findGi(seq);
+			/* efetch returns the records in the order of the request: without a gi| seqid,
+			 * the record is matched by its position if no record is missing */
+			if(gi==null && seqs.size()==requested.size()) gi=requested.get(i);
+			if(gi==null || !requested.contains(gi) || gi2features.containsKey(gi)) continue;
+			INSDSeqFeatureTable table=seq.getINSDSeqFeatureTable();
+			gi2features.put(gi, table==null?new ArrayList<INSDFeature>():table.getINSDFeature());
+			if(marshaller!=null)
+				{
+				INSDSet one=new INSDSet();
+				one.getINSDSeq().add(seq);
+				File tmp=new File(this.cacheDir,gi+".xml.tmp");
+				marshaller.marshal(one, tmp);
+				if(!tmp.renameTo(getCacheFile(gi)))
+					{
+					throw new IOException("Cannot rename "+tmp+" to "+getCacheFile(gi));
+					}
+				}
+			}
+		for(String gi:requested)
+			{
+			if(!gi2features.containsKey(gi))
+				{
+				System.err.println("[WARNING] no record matched gi|"+gi+" in "+uri);
+				}
+			}
+		return gi2features;
+		}
+	
+	/** schedules the download of the annotations for those names, by batches of 'batchSize' */
+	private synchronized void prefetchAnnotations(Set<String> names)
+		{
+		List<String> batch=new ArrayList<String>();
+		for(String name:names)
+			{
+			String gi=extractGi(name);
+			if(gi==null || this.gi2batch.containsKey(gi) || batch.contains(gi)) continue;
+			batch.add(gi);
+			if(batch.size()>=this.batchSize)
+				{
+				submitBatch(batch);
+				batch=new ArrayList<String>();
+				}
+			}
+		if(!batch.isEmpty()) submitBatch(batch);
+		}
+	
+	private void submitBatch(final List<String> gis)
+		{
+		Future<Map<String,List<INSDFeature>>> future=this.executor.submit(
+			new Callable<Map<String,List<INSDFeature>>>()
+				{
+				@Override
+				public Map<String, List<INSDFeature>> call() throws Exception
+					{
+					return fetchBatch(gis);
+					}
+				});
+		for(String gi:gis) this.gi2batch.put(gi, future);
+		}
+	
+	/** forgets the batches of those names, so their features can be garbage collected */
+	private synchronized void releaseAnnotations(Set<String> names)
+		{
+		for(String name:names)
+			{
+			String gi=extractGi(name);
+			if(gi!=null) this.gi2batch.remove(gi);
+			}
+		}
+	
+	/** returns the ids of the hits of an iteration */
+	private static Set<String> hitIds(Iteration iteration)
+		{
+		Set<String> names=new LinkedHashSet<String>();
+		for(Hit hit:iteration.getIterationHits().getHit())
+			{
+			names.add(hit.getHitId());
+			}
+		return names;
+		}
+	
+	/** fetches the annotation for a given entry if the name starts with gi|.... */
+	private List<INSDFeature> fetchAnnotations(String name)
+		throws Exception
+		{
+		String gi=extractGi(name);
+		if(gi!=null)
+			{
+			Future<Map<String,List<INSDFeature>>> future;
+			synchronized(this)
 				{
-				INSDSeq seq= set.getINSDSeq().get(0);
-				INSDSeqFeatureTable table=seq.getINSDSeqFeatureTable();
-				return table.getINSDFeature();
+				future=this.gi2batch.get(gi);
+				if(future==null)
+					{
+					Set<String> names=new LinkedHashSet<String>();
+					names.add(name);
+					prefetchAnnotations(names);
+					future=this.gi2batch.get(gi);
+					}
 				}
+			List<INSDFeature> features=future.get().get(gi);
+			if(features!=null) return features;
 			}
 		//not found, return empty table
 		return new ArrayList<INSDFeature>();
@@ -300,10 +485,22 @@ public class BlastAnnotation
 		{
 		System.out.println("QUERY: "+blast.getBlastOutputQueryDef());
 		System.out.println("       ID:"+blast.getBlastOutputQueryID()+" Len:"+blast.getBlastOutputQueryLen());
-		List<INSDFeature> qFeatures= fetchAnnotations(blast.getBlastOutputQueryID());
 		BlastOutputIterations iterations=blast.getBlastOutputIterations();
-		for(Iteration iteration:iterations.getIteration())
+		//download the annotations of the hits in the background, one iteration ahead
+		List<Iteration> iterationList=iterations.getIteration();
+		Set<String> names=(iterationList.isEmpty()?new LinkedHashSet<String>():hitIds(iterationList.get(0)));
+		Set<String> queryNames=new LinkedHashSet<String>();
+		queryNames.add(blast.getBlastOutputQueryID());
+		prefetchAnnotations(queryNames);
+		prefetchAnnotations(names);
+		List<INSDFeature> qFeatures= fetchAnnotations(blast.getBlastOutputQueryID());
+		queryNames.removeAll(names);
+		releaseAnnotations(queryNames);
+		for(int i=0;i< iterationList.size();++i)
 			{
+			Iteration iteration=iterationList.get(i);
+			Set<String> nextNames=(i+1< iterationList.size()?hitIds(iterationList.get(i+1)):new LinkedHashSet<String>());
+			prefetchAnnotations(nextNames);
 			for(Hit hit:iteration.getIterationHits().getHit())
 				{
 				System.out.println(">"+hit.getHitDef());
@@ -340,6 +537,10 @@ public class BlastAnnotation
 					}
 				
 				}
+			/* the hits of this iteration are printed, keep only the batches of the next one */
+			names.removeAll(nextNames);
+			releaseAnnotations(names);
+			names=nextNames;
 			}
 		
 		
@@ -359,6 +560,10 @@ public class BlastAnnotation
 					System.out.println("Options:");
 					System.out.println(" -h this screen");
 					System.out.println(" -L fasta line length");
+					System.out.println(" -cache <dir> directory where the NCBI annotations are stored and searched");
+					System.out.println(" -offline don't query the NCBI, only use the -cache directory");
+					System.out.println(" -batch <int> number of gi per efetch request. default:"+app.batchSize);
+					System.out.println(" -threads <int> number of threads fetching the annotations. default:"+app.nThreads);
 					System.out.println("(stdin|files) [XML NCBI BLAST results]");
 					return;
 					}
@@ -366,6 +571,22 @@ public class BlastAnnotation
 					{
 					app.fastaLineLength=Math.max(1,Integer.parseInt(args[++optind]));
 					}
+				else if(args[optind].equals("-cache"))
+					{
+					app.cacheDir=new File(args[++optind]);
+					}
+				else if(args[optind].equals("-offline"))
+					{
+					app.offline=true;
+					}
+				else if(args[optind].equals("-batch"))
+					{
+					app.batchSize=Math.max(1,Integer.parseInt(args[++optind]));
+					}
+				else if(args[optind].equals("-threads"))
+					{
+					app.nThreads=Math.max(1,Integer.parseInt(args[++optind]));
+					}
 				else if(args[optind].equals("--"))
 					{
 					optind++;
@@ -382,21 +603,39 @@ public class BlastAnnotation
 					}
 				++optind;
 				}
-			JAXBContext jc = JAXBContext.newInstance("sandbox.ncbi.blast");
-			Unmarshaller unmarshaller=jc.createUnmarshaller();
-			//read from stdin
-			if(optind==args.length)
+			if(app.cacheDir!=null && !app.cacheDir.isDirectory() && !app.cacheDir.mkdirs())
+				{
+				System.err.println("Cannot create directory "+app.cacheDir);
+				return;
+				}
+			if(app.offline && app.cacheDir==null)
 				{
-				app.parseBlast(BlastOutput.class.cast(unmarshaller.unmarshal(app.docBuilder.parse(System.in))));
+				System.err.println("-offline requires -cache");
+				return;
 				}
-			else
+			app.executor=Executors.newFixedThreadPool(app.nThreads);
+			try
 				{
-				//loop over the files
-				while(optind< args.length)
+				JAXBContext jc = JAXBContext.newInstance("sandbox.ncbi.blast");
+				Unmarshaller unmarshaller=jc.createUnmarshaller();
+				//read from stdin
+				if(optind==args.length)
 					{
-					String inputName=args[optind++];
-					app.parseBlast(BlastOutput.class.cast(unmarshaller.unmarshal(app.docBuilder.parse(new File(inputName)))));
+					app.parseBlast(BlastOutput.class.cast(unmarshaller.unmarshal(app.docBuilder.parse(System.in))));
 					}
+				else
+					{
+					//loop over the files
+					while(optind< args.length)
+						{
+						String inputName=args[optind++];
+						app.parseBlast(BlastOutput.class.cast(unmarshaller.unmarshal(app.docBuilder.parse(new File(inputName)))));
+						}
+					}
+				}
+			finally
+				{
+				app.executor.shutdownNow();
 				}
 			}
 		catch(Throwable err)
@@ -10,8 +10,6 @@ package sandbox;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.Random;
 
 import javax.imageio.ImageIO;
@@ -107,15 +105,6 @@ public class BouletMatonSpriteFactory {
 				return "http://www.zanorg.net/bouletmaton/assets/"+s+".png";
 		}
 	  
-	  private static final URL imageUrl(final String s) {
-			try {
-				return new URL(imageUrlStr(s));
-			} catch (MalformedURLException e) {
-				e.printStackTrace();
-				return null;
-			}
-		}
-	  
 	  private abstract class ImageInserter {
 		  
 		  abstract protected void insert(String urlstr);
@@ -155,11 +144,9 @@ public class BouletMatonSpriteFactory {
 		@Override
 		protected void insert(String urlStr) {
 			  if(urlStr==null) return;
-			  final URL url = imageUrl(urlStr);
-			  if(url==null) return;
 			  try {
-				  final BufferedImage img = ImageIO.read(url);
-				  g.drawImage(img, 0, 0, null);
+				  final BufferedImage img = ThumbnailCache.getInstance().read(imageUrlStr(urlStr));
+				  if(img!=null) g.drawImage(img, 0, 0, null);
 			  } catch(Exception err) {
 				  err.printStackTrace();
 			  }	
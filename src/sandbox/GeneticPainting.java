@@ -23,23 +23,35 @@ import java.awt.geom.GeneralPath;
 import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.imageio.ImageIO;
+import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
 
 import org.apache.commons.cli.Option;
@@ -54,12 +66,34 @@ public class GeneticPainting extends AbstractApplication
 	protected static final Logger LOG=Logger.getLogger("jsandbox");
 
 	private BufferedImage sourceImage=null;
+	/** ARGB pixels of the source image, row by row */
+	private int sourcePixels[]=null;
+	/** if the dirty area of a child is larger than this fraction of the image, the whole image is scored */
+	private double max_dirty_fraction=0.5;
 	private Random random=new Random();
 	private String fileout="_painting";
 	private int shape_min_size=10;
 	private int shape_max_size=20;
 	private char shape_type='c';
 	private int n_threads=3;
+	private boolean write_mosaic=false;
+	/** save a checkpoint every 'n' generations */
+	private int checkpoint_every=100;
+	/** SVG file (output or checkpoint) used to resume, or null */
+	private File resumeFile=null;
+	/** one scratch image per worker thread */
+	private final ThreadLocal<BufferedImage> scratchImages=new ThreadLocal<BufferedImage>()
+		{
+		@Override
+		protected BufferedImage initialValue()
+			{
+			return new BufferedImage(
+				sourceImage.getWidth(),
+				sourceImage.getHeight(),
+				BufferedImage.TYPE_INT_ARGB
+				);
+			}
+		};
 	
 	private abstract class Figure implements Cloneable
 		{
@@ -98,6 +132,16 @@ public class GeneticPainting extends AbstractApplication
 			}
 		public abstract Object clone() ;
 		public abstract double area();
+		/** area of the image that may be modified by this figure */
+		public abstract Rectangle getBounds();
+		/** returns true if the other figure paints exactly the same pixels */
+		public abstract boolean sameAs(Figure o);
+		
+		protected boolean sameColor(Figure o)
+			{
+			return	red==o.red && green==o.green &&
+					blue==o.blue && alpha==o.alpha;
+			}
 		public abstract void xml(XMLStreamWriter w) throws XMLStreamException;
 		}
 	
@@ -172,6 +216,18 @@ public class GeneticPainting extends AbstractApplication
 		public double area() {
 			return radius;
 			}
+		@Override
+		public Rectangle getBounds()
+			{
+			return new Rectangle(cx-radius-1,cy-radius-1,radius*2+3,radius*2+3);
+			}
+		@Override
+		public boolean sameAs(Figure o)
+			{
+			if(!(o instanceof Circle) || !sameColor(o)) return false;
+			Circle c=Circle.class.cast(o);
+			return cx==c.cx && cy==c.cy && radius==c.radius;
+			}
 		
 		@Override
 		public void xml(XMLStreamWriter w) throws XMLStreamException
@@ -228,9 +284,9 @@ public class GeneticPainting extends AbstractApplication
 			Line cp=new Line();
 			cp.alpha=alpha;
 			cp.x1=x1;
-			cp.y2=y1;
+			cp.y1=y1;
 			cp.x2=x2;
-			cp.y1=y2;
+			cp.y2=y2;
 			cp.weight=weight;
 			cp.red=red;
 			cp.green=green;
@@ -241,6 +297,20 @@ public class GeneticPainting extends AbstractApplication
 		public double area() {
 			return weight;
 			}
+		@Override
+		public Rectangle getBounds()
+			{
+			Rectangle r=new Rectangle(Math.min(x1,x2),Math.min(y1,y2),Math.abs(x1-x2)+1,Math.abs(y1-y2)+1);
+			r.grow(weight+1, weight+1);
+			return r;
+			}
+		@Override
+		public boolean sameAs(Figure o)
+			{
+			if(!(o instanceof Line) || !sameColor(o)) return false;
+			Line l=Line.class.cast(o);
+			return x1==l.x1 && y1==l.y1 && x2==l.x2 && y2==l.y2 && weight==l.weight;
+			}
 		
 		@Override
 		String getSvgStyle() {
@@ -408,6 +478,19 @@ public class GeneticPainting extends AbstractApplication
 			return  r.getWidth() * r.getHeight();
 			}
 		@Override
+		public Rectangle getBounds()
+			{
+			Rectangle r= getPath().getBounds();
+			r.grow(1, 1);
+			return r;
+			}
+		@Override
+		public boolean sameAs(Figure o)
+			{
+			if(!(o instanceof Poly) || !sameColor(o)) return false;
+			return this.points.equals(Poly.class.cast(o).points);
+			}
+		@Override
 		public void xml(XMLStreamWriter w) throws XMLStreamException
 			{
 			w.writeEmptyElement("path");
@@ -427,7 +510,10 @@ public class GeneticPainting extends AbstractApplication
 	
 	private class Solution implements Comparable<Solution>,Cloneable
 		{
+		/** generation where this solution was found */
 		long generation=0;
+		/** generation of the run when this solution was saved, used by -resume */
+		long lastGeneration=0;
 		Long fitness=null;
 		List<Figure> shapes=new ArrayList<Figure>();
 		
@@ -458,6 +544,27 @@ public class GeneticPainting extends AbstractApplication
 				f.paint(g);
 				}
 			}
+		
+		/**
+		 * returns the area where this solution and 'ref' may paint different pixels,
+		 * an empty rectangle if they are the same, or null if they cannot be compared
+		 * figure by figure.
+		 */
+		public Rectangle diff(Solution ref)
+			{
+			if(ref==null || ref.shapes.size()!=this.shapes.size()) return null;
+			Rectangle dirty=new Rectangle();
+			for(int i=0;i< this.shapes.size();++i)
+				{
+				Figure f1=this.shapes.get(i);
+				Figure f2=ref.shapes.get(i);
+				if(f1.sameAs(f2)) continue;
+				dirty=(dirty.isEmpty()?f1.getBounds():dirty.union(f1.getBounds()));
+				dirty=dirty.union(f2.getBounds());
+				}
+			return dirty.intersection(new Rectangle(0,0,sourceImage.getWidth(),sourceImage.getHeight()));
+			}
+		
 		@Override
 		public int compareTo(Solution o) {
 			int i= fitness.compareTo(o.fitness);
@@ -565,7 +672,7 @@ public class GeneticPainting extends AbstractApplication
 			w.writeAttribute("height", String.valueOf(sourceImage.getHeight()));
 			w.writeAttribute("style", "stroke:none;");
 			w.writeStartElement("title");
-			w.writeCharacters("Fitness:"+fitness+" Generation:"+generation);
+			w.writeCharacters("Fitness:"+fitness+" Generation:"+generation+" Last:"+Math.max(generation,lastGeneration));
 			w.writeEndElement();
 			
 			w.writeEmptyElement("rect");
@@ -670,51 +777,299 @@ public class GeneticPainting extends AbstractApplication
 		return s;
 		}
 	
+	/** renders one child on the scratch image of the current worker and computes its fitness */
 	private class Fitness
 		implements Callable<Long>
 		{
-		int rowStart;
-		int rowEnd;
-		BufferedImage tmpImage;
+		/** the child to be evaluated */
+		Solution child;
+		/** the current best solution, or null */
+		Solution reference=null;
+		/** pixels of 'reference' painted on a white background */
+		int referencePixels[]=null;
+		/** fitness of referencePixels */
+		long referenceFitness=0L;
+		/** where the thumbnail of the child is drawn, or null */
+		BufferedImage mosaicImage=null;
+		Rectangle mosaicCell=null;
 		
 		Fitness()
 			{
 			
 			}
 		
-		private int deltaRgb(int rgb1,int rgb2)
+		@Override
+		public Long call() throws Exception
 			{
-			int r1 = (rgb1)&0xFF;
-			int g1 = (rgb1>>8)&0xFF;
-			int b1 = (rgb1>>16)&0xFF;
-			int a1 = (rgb1>>24)&0xFF;
-		
-			int r2 = (rgb2)&0xFF;
-			int g2 = (rgb2>>8)&0xFF;
-			int b2 = (rgb2>>16)&0xFF;
-			int a2 = (rgb2>>24)&0xFF;
+			BufferedImage tmpImage=scratchImages.get();
+			int tmpPixels[]=((DataBufferInt)tmpImage.getRaster().getDataBuffer()).getData();
+			Rectangle fullImage=new Rectangle(0,0,tmpImage.getWidth(),tmpImage.getHeight());
+			Rectangle dirty=(this.referencePixels==null?null:this.child.diff(this.reference));
+			if(dirty!=null &&
+				dirty.getWidth()*dirty.getHeight() > max_dirty_fraction*fullImage.getWidth()*fullImage.getHeight())
+				{
+				dirty=null;
+				}
+			Graphics2D g2= tmpImage.createGraphics();
+			g2.setStroke(new BasicStroke(1f));
+			g2.setColor(Color.WHITE);
+			if(dirty==null)
+				{
+				g2.fillRect(0, 0, tmpImage.getWidth(), tmpImage.getHeight());
+				this.child.paint(g2);
+				}
+			else
+				{
+				/* only repaint the area where the child differs from the reference */
+				System.arraycopy(this.referencePixels, 0, tmpPixels, 0, tmpPixels.length);
+				if(!dirty.isEmpty())
+					{
+					g2.setClip(dirty);
+					g2.fill(dirty);
+					this.child.paint(g2);
+					}
+				}
+			g2.dispose();
+			
+			if(this.mosaicImage!=null)
+				{
+				synchronized(this.mosaicImage)
+					{
+					Graphics2D g3=this.mosaicImage.createGraphics();
+					g3.drawImage(tmpImage,
+							mosaicCell.x,mosaicCell.y,
+							mosaicCell.width,mosaicCell.height,null
+							);
+					g3.setColor(Color.BLACK);
+					g3.drawRect(mosaicCell.x,mosaicCell.y,mosaicCell.width,mosaicCell.height);
+					g3.dispose();
+					}
+				}
 			
-			return 	pow2(r1-r2)+
-					pow2(g1-g2)+
-					pow2(b1-b2)+
-					pow2(a1-a2)
-					;
+			if(dirty==null)
+				{
+				return score(tmpPixels,fullImage);
+				}
+			else if(dirty.isEmpty())
+				{
+				return this.referenceFitness;
+				}
+			else
+				{
+				return this.referenceFitness
+					- score(this.referencePixels,dirty)
+					+ score(tmpPixels,dirty);
+				}
 			}
+		}
+	
+	private static int deltaRgb(int rgb1,int rgb2)
+		{
+		int r1 = (rgb1)&0xFF;
+		int g1 = (rgb1>>8)&0xFF;
+		int b1 = (rgb1>>16)&0xFF;
+		int a1 = (rgb1>>24)&0xFF;
+	
+		int r2 = (rgb2)&0xFF;
+		int g2 = (rgb2>>8)&0xFF;
+		int b2 = (rgb2>>16)&0xFF;
+		int a2 = (rgb2>>24)&0xFF;
 		
+		return 	pow2(r1-r2)+
+				pow2(g1-g2)+
+				pow2(b1-b2)+
+				pow2(a1-a2)
+				;
+		}
+	
+	/** sum of the squared differences between the source and 'pixels' in the box */
+	private long score(int pixels[],Rectangle box)
+		{
+		final int width=this.sourceImage.getWidth();
+		final int src[]=this.sourcePixels;
+		long fitness=0L;
+		for(int y=box.y;y< box.y+box.height;++y )
+			{
+			int offset=y*width;
+			for(int x=box.x;x< box.x+box.width;++x )
+				{
+				fitness+=deltaRgb(src[offset+x], pixels[offset+x]);
+				}
+			}
+		return fitness;
+		}
+	
+	private static final Pattern STYLE_RGB=Pattern.compile("rgb\\(([0-9]+),([0-9]+),([0-9]+)\\)");
+	private static final Pattern STYLE_OPACITY=Pattern.compile("-opacity:([0-9\\.Ee\\-]+)");
+	private static final Pattern STYLE_WIDTH=Pattern.compile("stroke-width:([0-9]+)px");
+	
+	/** set the color of a figure from the 'style' attribute written by Figure.xml */
+	private static void parseStyle(Figure f,String style) throws IOException
+		{
+		Matcher m=STYLE_RGB.matcher(style);
+		if(!m.find()) throw new IOException("Cannot find color in "+style);
+		f.red=Integer.parseInt(m.group(1));
+		f.green=Integer.parseInt(m.group(2));
+		f.blue=Integer.parseInt(m.group(3));
+		m=STYLE_OPACITY.matcher(style);
+		if(!m.find()) throw new IOException("Cannot find opacity in "+style);
+		f.alpha=(int)Math.round(Double.parseDouble(m.group(1))*255.0);
+		}
+	
+	private static int intAttribute(XMLStreamReader r,String name) throws IOException
+		{
+		String s=r.getAttributeValue(null, name);
+		if(s==null) throw new IOException("missing @"+name+" in "+r.getLocalName());
+		return Integer.parseInt(s);
+		}
+	
+	/** reads a solution saved by Solution.xml */
+	private Solution readSolution(File file) throws IOException,XMLStreamException
+		{
+		Solution sol=new Solution();
+		XMLInputFactory xif=XMLInputFactory.newInstance();
+		xif.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		InputStream in=new FileInputStream(file);
+		XMLStreamReader r=xif.createXMLStreamReader(in);
+		while(r.hasNext())
+			{
+			if(r.next()!=XMLStreamConstants.START_ELEMENT) continue;
+			String name=r.getLocalName();
+			String style=r.getAttributeValue(null, "style");
+			if(name.equals("title"))
+				{
+				String title=r.getElementText();
+				Matcher m=Pattern.compile("Generation:([0-9]+)").matcher(title);
+				if(m.find()) sol.generation=Long.parseLong(m.group(1));
+				/* files saved before 'Last:' was written resume from the generation of the solution */
+				m=Pattern.compile("Last:([0-9]+)").matcher(title);
+				sol.lastGeneration=(m.find()?Long.parseLong(m.group(1)):sol.generation);
+				}
+			else if(name.equals("circle"))
+				{
+				Circle c=new Circle();
+				c.cx=intAttribute(r,"cx");
+				c.cy=intAttribute(r,"cy");
+				c.radius=intAttribute(r,"r");
+				parseStyle(c,style);
+				sol.shapes.add(c);
+				}
+			else if(name.equals("line"))
+				{
+				Line l=new Line();
+				l.x1=intAttribute(r,"x1");
+				l.x2=intAttribute(r,"x2");
+				l.y1=intAttribute(r,"y1");
+				l.y2=intAttribute(r,"y2");
+				parseStyle(l,style);
+				Matcher m=STYLE_WIDTH.matcher(style);
+				if(m.find()) l.weight=Integer.parseInt(m.group(1));
+				sol.shapes.add(l);
+				}
+			else if(name.equals("path"))
+				{
+				Poly poly=new Poly(0);
+				String tokens[]=r.getAttributeValue(null, "d").replaceAll("[MLZ]", " ").trim().split("[ ]+");
+				for(int i=0;i+1< tokens.length;i+=2)
+					{
+					poly.points.add(new Point2D.Double(
+						Double.parseDouble(tokens[i]),
+						Double.parseDouble(tokens[i+1])
+						));
+					}
+				parseStyle(poly,style);
+				sol.shapes.add(poly);
+				}
+			}
+		r.close();
+		in.close();
+		if(sol.shapes.isEmpty()) throw new IOException("No figure found in "+file);
+		return sol;
+		}
+	
+	/** writes the svg of a solution into a unique temporary file, then renames it */
+	private void writeSvg(Solution sol,File file) throws IOException,XMLStreamException
+		{
+		File dir=file.getAbsoluteFile().getParentFile();
+		File tmp=File.createTempFile(file.getName()+".", ".tmp", dir);
+		XMLOutputFactory factory=XMLOutputFactory.newFactory();
+		FileOutputStream fout=new FileOutputStream(tmp);
+		XMLStreamWriter w=factory.createXMLStreamWriter(fout, "UTF-8");
+		sol.xml(w);
+		w.writeEndDocument();
+		w.flush();
+		w.close();
+		fout.flush();
+		fout.close();
+		if(!tmp.renameTo(file))
+			{
+			tmp.delete();
+			throw new IOException("Cannot rename "+tmp+" to "+file);
+			}
+		}
+	
+	/** encodes the PNG, SVG and HTML of a snapshot of the best solution */
+	private class SnapshotWriter implements Runnable
+		{
+		private Solution best;
+		SnapshotWriter(Solution best)
+			{
+			this.best=best;
+			}
 		@Override
-		public Long call() throws Exception
+		public void run()
 			{
-			long fitness=0L;
-			for(int x=0;x< tmpImage.getWidth();++x )
+			try
 				{
-				for(int y=rowStart;y< rowEnd;++y )
+				BufferedImage img=new BufferedImage(
+					sourceImage.getWidth(),
+					sourceImage.getHeight(),
+					BufferedImage.TYPE_INT_ARGB
+					);
+				Graphics2D g2= img.createGraphics();
+				g2.setStroke(new BasicStroke(1f));
+				g2.setBackground(new Color(255,255,255,0));
+				g2.clearRect(0, 0, img.getWidth(), img.getHeight());
+				this.best.paint(g2);
+				g2.dispose();
+				ImageIO.write(img, "PNG", new File(fileout+".png"));
+				
+				writeSvg(this.best,new File(fileout+".svg"));
+				
+				if(shape_type=='c')
 					{
-					int rgb1= sourceImage.getRGB(x, y);
-					int rgb2= tmpImage.getRGB(x, y);
-					fitness+=deltaRgb(rgb1, rgb2);
+					PrintWriter o=new PrintWriter(new File(fileout+".html"));
+					this.best.html(o);
+					o.flush();
+					o.close();
 					}
 				}
-			return fitness;
+			catch(Exception err)
+				{
+				LOG.severe("Cannot save snapshot: "+err.getMessage());
+				}
+			}
+		}
+	
+	/** saves the best solution, used by -resume */
+	private class CheckpointWriter implements Runnable
+		{
+		private Solution best;
+		CheckpointWriter(Solution best)
+			{
+			this.best=best;
+			}
+		@Override
+		public void run()
+			{
+			try
+				{
+				writeSvg(this.best,new File(fileout+".checkpoint.svg"));
+				}
+			catch(Exception err)
+				{
+				LOG.severe("Cannot save checkpoint: "+err.getMessage());
+				}
 			}
 		}
 	
@@ -728,184 +1083,191 @@ public class GeneticPainting extends AbstractApplication
 				this.sourceImage.getHeight(),
 				BufferedImage.TYPE_INT_ARGB
 				);
+		final int tmpPixels[]=((DataBufferInt)tmpImage.getRaster().getDataBuffer()).getData();
+		final Rectangle fullImage=new Rectangle(0,0,tmpImage.getWidth(),tmpImage.getHeight());
+		this.sourcePixels=this.sourceImage.getRGB(0, 0,
+				this.sourceImage.getWidth(), this.sourceImage.getHeight(),
+				null, 0, this.sourceImage.getWidth());
+		/* pixels of 'best' painted on a white background, used to score only the dirty area of the children */
+		int bestPixels[]=null;
+		long bestPixelsFitness=0L;
 		
-		BufferedImage mosaicImage=new BufferedImage(
+		BufferedImage mosaicImage=null;
+		if(this.write_mosaic)
+			{
+			mosaicImage=new BufferedImage(
 				this.sourceImage.getWidth(),
 				this.sourceImage.getHeight(),
 				this.sourceImage.getType()
 				);
-		
-		int nThreads=this.n_threads;
-		int rowsPerThreads=this.sourceImage.getHeight()/nThreads;
-		if(rowsPerThreads<=0)
-			{
-			nThreads=1;
-			rowsPerThreads=this.sourceImage.getHeight();
 			}
-		Fitness calls[]=new Fitness[nThreads];
-		List<Future<Long>> futures=new ArrayList<Future<Long>>(nThreads);
-		for(int i=0;i< calls.length;++i)
+		
+		if(this.resumeFile!=null)
 			{
-			futures.add(null);
-			Fitness f=new Fitness();
-			f.rowStart=(i*rowsPerThreads);
-			f.rowEnd=(i+1==calls.length?this.sourceImage.getHeight():(i+1)*rowsPerThreads);
-			f.tmpImage=tmpImage;
-			calls[i]=f;
+			LOG.info("resuming from "+this.resumeFile);
+			best=readSolution(this.resumeFile);
+			n_generation=best.lastGeneration;
+			Graphics2D g4= tmpImage.createGraphics();
+			g4.setStroke(new BasicStroke(1f));
+			g4.setColor(Color.WHITE);
+			g4.fillRect(0, 0, tmpImage.getWidth(), tmpImage.getHeight());
+			best.paint(g4);
+			g4.dispose();
+			bestPixels=tmpPixels.clone();
+			bestPixelsFitness=score(bestPixels,fullImage);
+			best.fitness=bestPixelsFitness;
+			System.out.println("resumed generation:"+n_generation+ " fitness:"+ best.fitness);
 			}
-
 		
-		for(;;)
+		ExecutorService executor=Executors.newFixedThreadPool(Math.max(1,this.n_threads));
+		/* writes the snapshots off the evolution thread; when it is late, only the most recent pending snapshots are kept */
+		ThreadPoolExecutor writer=new ThreadPoolExecutor(1, 1,
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(2),
+				new ThreadPoolExecutor.DiscardOldestPolicy()
+				);
+		/* writes the checkpoints, one at a time: a pending checkpoint is only replaced by a newer one, the last one is always written */
+		ThreadPoolExecutor checkpointWriter=new ThreadPoolExecutor(1, 1,
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(1),
+				new ThreadPoolExecutor.DiscardOldestPolicy()
+				);
+		try
 			{
-			++n_generation;
-			List<Solution> parents=new ArrayList<Solution>();
+			for(;;)
+				{
+				++n_generation;
+				List<Solution> parents=new ArrayList<Solution>();
 			
 			
-			while(parents.size()< parent_count)
-				{
-				if(best==null || parents.isEmpty())
-					{
-					parents.add(makeSolution());
-					}
-				else if(parents.size()==1)
-					{
-					parents.add(Solution.class.cast(best.clone()));
-					}
-				else
+				while(parents.size()< parent_count)
 					{
-					parents.add(Solution.class.cast(best.clone()).mute());
+					if(best==null || parents.isEmpty())
+						{
+						parents.add(makeSolution());
+						}
+					else if(parents.size()==1)
+						{
+						parents.add(Solution.class.cast(best.clone()));
+						}
+					else
+						{
+						parents.add(Solution.class.cast(best.clone()).mute());
+						}
 					}
-				}
 			
-			List<Solution> children=new ArrayList<Solution>(parents.size()*parents.size());
+				List<Solution> children=new ArrayList<Solution>(parents.size()*parents.size());
 			
 			
 			
-			for(int i=0;i< parents.size();++i)
-				{
-				for(int j=0;j< parents.size();++j)
+				for(int i=0;i< parents.size();++i)
 					{
-					if(i==j) continue;
-					children.add(mate(parents.get(i),parents.get(j)));
-					}
-				}
-				
-			Graphics2D g3=mosaicImage.createGraphics();
-			g3.setColor(Color.WHITE);
-			g3.fillRect(0, 0, mosaicImage.getWidth(), mosaicImage.getHeight());
-			int cols=0;
-			int iconW=0;
-			int iconH=0;
-			if(!children.isEmpty())
-				{
-				cols=(int)Math.ceil(Math.sqrt(children.size()));
-				int rows=(int)Math.ceil(children.size()/(double)cols);
-				iconW=mosaicImage.getWidth()/cols;
-				iconH=mosaicImage.getHeight()/rows;
-				}
-			int x=0;
-			int y=0;
-			for(Solution c:children)
-				{
-				c.fitness=0L;
-				Graphics2D g2= tmpImage.createGraphics();
-				g2.setStroke(new BasicStroke(1f));
-				g2.setColor(Color.WHITE);
-				g2.fillRect(0, 0, tmpImage.getWidth(), tmpImage.getHeight());
-				c.paint(g2);
-				g2.dispose();
-				
-				g3.drawImage(tmpImage,
-						x*iconW,y*iconH,
-						iconW,iconH,null
-						);
-				g3.setColor(Color.BLACK);
-				g3.drawRect(x*iconW,y*iconH, iconW,iconH);
-				
-				x++;
-				if(x==cols)
-					{
-					x=0;
-					y++;
+					for(int j=0;j< parents.size();++j)
+						{
+						if(i==j) continue;
+						children.add(mate(parents.get(i),parents.get(j)));
+						}
 					}
-				
-				if(calls.length==1)
+			
+				int cols=0;
+				int iconW=0;
+				int iconH=0;
+				if(mosaicImage!=null && !children.isEmpty())
 					{
-					c.fitness=calls[0].call();
+					Graphics2D g3=mosaicImage.createGraphics();
+					g3.setColor(Color.WHITE);
+					g3.fillRect(0, 0, mosaicImage.getWidth(), mosaicImage.getHeight());
+					g3.dispose();
+					cols=(int)Math.ceil(Math.sqrt(children.size()));
+					int rows=(int)Math.ceil(children.size()/(double)cols);
+					iconW=mosaicImage.getWidth()/cols;
+					iconH=mosaicImage.getHeight()/rows;
 					}
-				else
+			
+				/* render and score all the children in parallel */
+				List<Fitness> calls=new ArrayList<Fitness>(children.size());
+				for(int i=0;i< children.size();++i)
 					{
-					ExecutorService service=Executors.newFixedThreadPool(calls.length);
-					for(int t=0;t< calls.length;++t)
-						{
-						Future<Long> rez=service.submit(calls[t]);
-						futures.set(t, rez);
-						}
-					service.shutdown();
-					while(!service.isTerminated())
+					Fitness f=new Fitness();
+					f.child=children.get(i);
+					f.reference=best;
+					f.referencePixels=bestPixels;
+					f.referenceFitness=bestPixelsFitness;
+					if(mosaicImage!=null)
 						{
-						//nothing
-						}
-					for(Future<Long> f: futures)
-						{
-						c.fitness+=f.get();
+						f.mosaicImage=mosaicImage;
+						f.mosaicCell=new Rectangle((i%cols)*iconW,(i/cols)*iconH,iconW,iconH);
 						}
+					calls.add(f);
+					}
+				List<Future<Long>> futures=executor.invokeAll(calls);
+				for(int i=0;i< children.size();++i)
+					{
+					children.get(i).fitness=futures.get(i).get();
 					}
-				}
-			
-			g3.dispose();
 			
 			
-			Collections.sort(children);
+				Collections.sort(children);
 			
 			
 			
 			
-			if( !children.isEmpty() &&
-				(best==null || children.get(0).compareTo(best)<0)
-				)
-				{
-				best=(Solution)children.get(0).clone();
-				best.generation=n_generation;
-				System.out.println("generation:"+n_generation+ " fitness:"+ best.fitness+" seconds:"+(System.currentTimeMillis()-now)/1000);
-				now=System.currentTimeMillis();
-				Graphics2D g2= tmpImage.createGraphics();
-				g2.setStroke(new BasicStroke(1f));
-				g2.setBackground(new Color(255,255,255,0));
-				g2.clearRect(0, 0, tmpImage.getWidth(), tmpImage.getHeight());
-				best.paint(g2);
-				g2.dispose();
-				ImageIO.write(tmpImage, "PNG", new File(this.fileout+".png"));
+				if( !children.isEmpty() &&
+					(best==null || children.get(0).compareTo(best)<0)
+					)
+					{
+					best=(Solution)children.get(0).clone();
+					best.generation=n_generation;
 				
-				XMLOutputFactory factory=XMLOutputFactory.newFactory();
-				FileOutputStream fout=new FileOutputStream(this.fileout+".svg");
-				XMLStreamWriter w=factory.createXMLStreamWriter(fout, "UTF-8");
-				best.xml(w);
-				fout.flush();
-				fout.close();
+					Graphics2D g4= tmpImage.createGraphics();
+					g4.setStroke(new BasicStroke(1f));
+					g4.setColor(Color.WHITE);
+					g4.fillRect(0, 0, tmpImage.getWidth(), tmpImage.getHeight());
+					best.paint(g4);
+					g4.dispose();
+					bestPixels=tmpPixels.clone();
+					bestPixelsFitness=score(bestPixels,fullImage);
 				
-				if(this.shape_type=='c')
+					System.out.println("generation:"+n_generation+ " fitness:"+ best.fitness+" seconds:"+(System.currentTimeMillis()-now)/1000);
+					now=System.currentTimeMillis();
+					Solution snapshot=(Solution)best.clone();
+					snapshot.generation=best.generation;
+					snapshot.lastGeneration=n_generation;
+					writer.execute(new SnapshotWriter(snapshot));
+					}
+				else if(!children.isEmpty())
 					{
-					PrintWriter o=new PrintWriter(new File(this.fileout+".html"));
-					best.html(o);
-					o.flush();
-					o.close();
+					System.out.println("best(Generation="+n_generation+")="+children.get(0).fitness);
+					if(mosaicImage!=null)
+						{
+						ImageIO.write(mosaicImage, "PNG", new File(this.fileout+"-mosaic.png"));
+						}
 					}
-				
-				}
-			else if(!children.isEmpty())
-				{
-				System.out.println("best(Generation="+n_generation+")="+children.get(0).fitness);
-				ImageIO.write(mosaicImage, "PNG", new File(this.fileout+"-mosaic.png"));	
-				}
-			/*
-			while(children.size()>parent_count)
-				{
-				children.remove(children.size()-1);
+				if(best!=null && this.checkpoint_every>0 && n_generation%this.checkpoint_every==0)
+					{
+					Solution snapshot=(Solution)best.clone();
+					snapshot.generation=best.generation;
+					snapshot.lastGeneration=n_generation;
+					checkpointWriter.execute(new CheckpointWriter(snapshot));
+					}
+				/*
+				while(children.size()>parent_count)
+					{
+					children.remove(children.size()-1);
+					}
+				parents=children;*/ 
 				}
-			parents=children;*/ 
 			}
-		
+		finally
+			{
+			executor.shutdownNow();
+			writer.shutdown();
+			checkpointWriter.shutdown();
+			/* let the pending snapshot and checkpoint be written */
+			executor.awaitTermination(1L, TimeUnit.MINUTES);
+			writer.awaitTermination(1L, TimeUnit.MINUTES);
+			checkpointWriter.awaitTermination(1L, TimeUnit.MINUTES);
+			}
 		}
 	
 	private static int pow2(int a)
@@ -945,6 +1307,25 @@ public class GeneticPainting extends AbstractApplication
 				hasArg().
 				argName("NUM").
 				build());
+		options.addOption(Option.builder("j").
+				desc("number of threads evaluating the children. default: "+n_threads).
+				hasArg().
+				argName("NUM").
+				build());
+		options.addOption(Option.builder("c").
+				desc("save a checkpoint every NUM generations in OUTPUT.checkpoint.svg. 0: never. default: "+checkpoint_every).
+				hasArg().
+				argName("NUM").
+				build());
+		options.addOption(Option.builder("resume").
+				longOpt("resume").
+				desc("resume from a SVG file saved by this program (OUTPUT.svg or OUTPUT.checkpoint.svg)").
+				hasArg().
+				argName("FILE").
+				build());
+		options.addOption(Option.builder("m").
+				desc("write the mosaic of the children of each generation").
+				build());
 		options.addOption(Option.builder("t").
 				desc("shape type c:circle l:line").
 				hasArg().
@@ -979,6 +1360,23 @@ public class GeneticPainting extends AbstractApplication
 			this.shape_max_size= Integer.parseInt(cmd.getOptionValue("n5"));
 			}
 		
+		if(cmd.hasOption("j"))
+			{	
+			this.n_threads= Integer.parseInt(cmd.getOptionValue("j"));
+			}
+		if(cmd.hasOption("m"))
+			{	
+			this.write_mosaic=true;
+			}
+		if(cmd.hasOption("c"))
+			{	
+			this.checkpoint_every= Integer.parseInt(cmd.getOptionValue("c"));
+			}
+		if(cmd.hasOption("resume"))
+			{	
+			this.resumeFile= new File(cmd.getOptionValue("resume"));
+			}
+		
 		if(cmd.hasOption("o"))
 			{	
 			this.fileout= cmd.getOptionValue("o");
@@ -20,14 +20,13 @@
  */
 package sandbox;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 import javax.imageio.ImageIO;
 import javax.xml.stream.XMLOutputFactory;
@@ -41,68 +40,147 @@ import javax.xml.stream.XMLStreamWriter;
  */
 public class ImagesToBase64
 	{
-	private final static String BASE64 =
-	"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+	private final static char BASE64[] =
+	"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
 	
 	
-	private static void encode(InputStream dataIn,StringBuilder out)
-		throws IOException
+	/**
+	 * OutputStream encoding the bytes in base64 to a Writer. The bytes are
+	 * encoded by blocks, at most 2 bytes are kept between two calls to write.
+	 * close() writes the padding but doesn't close the Writer.
+	 */
+	private static class Base64OutputStream extends OutputStream
 		{
-
-		char output[] = new char[4];
-		int restbits = 0;
-		 int chunks = 0;
-		int c;
-		int nFill=0;
+		private final Writer out;
+		/** wrap lines after 'lineLength' characters if >0 */
+		private final int lineLength;
+		private final byte rest[]=new byte[3];
+		private int nRest=0;
+		private final char buffer[]=new char[4*1024];
+		private int nBuffer=0;
+		private int column=0;
 		
-		while((c=dataIn.read())!=-1)
+		Base64OutputStream(Writer out,int lineLength)
 			{
-			int ic = ( c >= 0 ? c : (c & 0x7F) + 128);
-			//array3[nFill]=(byte)ic;
-		   
-		    switch (nFill)
-		        {	
-		        case 0:
-		        	{
-		        	output[nFill] = BASE64.charAt(ic >>> 2);
-		            restbits = ic & 0x03;
-		            nFill++;
-		            break;
-		        	}
-		       case 1:
-		    	    {
-		    		output[nFill] = BASE64.charAt((restbits << 4) | (ic >>> 4));
-		    	    restbits = ic & 0x0F;
-		    	    nFill++;
-		            break;
-		    	    }
-		       case 2:
-		    	   	{
-		    	   	output[nFill  ] = BASE64.charAt((restbits << 2) | (ic >>> 6));
-		    	   	output[nFill+1] = BASE64.charAt(ic & 0x3F);
-		            out.append(new String(output));
-		            // keep no more the 76 character per line
-		            chunks++;
-		            nFill=0;
-		            break;
-		    	   	}
-		        }
-			} // for
+			this.out=out;
+			this.lineLength=lineLength;
+			}
 		
-			/* final */
-			switch (nFill)
-			{    case 1:
-		         	 output[1] = BASE64.charAt((restbits << 4));
-		             output[2] = output[3] = '=';
-		             out.append(new String(output));
-		             break;
-		         case 2:
-		         	 output[2] = BASE64.charAt((restbits << 2));
-		             output[3] = '=';
-		             out.append(new String(output));
-		             break;
+		@Override
+		public void write(int b) throws IOException
+			{
+			rest[nRest++]=(byte)b;
+			if(nRest==3)
+				{
+				encode(rest,0);
+				nRest=0;
+				}
+			}
+		
+		@Override
+		public void write(byte[] array, int off, int len) throws IOException
+			{
+			/* complete the pending triplet */
+			while(nRest!=0 && len>0)
+				{
+				write(array[off++]);
+				len--;
+				}
+			while(len>=3)
+				{
+				encode(array,off);
+				off+=3;
+				len-=3;
+				}
+			while(len>0)
+				{
+				rest[nRest++]=array[off++];
+				len--;
+				}
+			}
+		
+		private void encode(byte[] array,int off) throws IOException
+			{
+			int b0=array[off]&0xFF;
+			int b1=array[off+1]&0xFF;
+			int b2=array[off+2]&0xFF;
+			append(BASE64[b0>>>2]);
+			append(BASE64[((b0&0x03)<<4)|(b1>>>4)]);
+			append(BASE64[((b1&0x0F)<<2)|(b2>>>6)]);
+			append(BASE64[b2&0x3F]);
+			}
+		
+		private void append(char c) throws IOException
+			{
+			if(nBuffer+2>buffer.length)
+				{
+				out.write(buffer,0,nBuffer);
+				nBuffer=0;
+				}
+			buffer[nBuffer++]=c;
+			if(lineLength>0 && ++column==lineLength)
+				{
+				buffer[nBuffer++]='\n';
+				column=0;
+				}
+			}
+		
+		@Override
+		public void flush() throws IOException
+			{
+			out.write(buffer,0,nBuffer);
+			nBuffer=0;
+			out.flush();
+			}
+		
+		@Override
+		public void close() throws IOException
+			{
+			switch(nRest)
+				{
+				case 1:
+					{
+					int b0=rest[0]&0xFF;
+					append(BASE64[b0>>>2]);
+					append(BASE64[(b0&0x03)<<4]);
+					append('=');
+					append('=');
+					break;
+					}
+				case 2:
+					{
+					int b0=rest[0]&0xFF;
+					int b1=rest[1]&0xFF;
+					append(BASE64[b0>>>2]);
+					append(BASE64[((b0&0x03)<<4)|(b1>>>4)]);
+					append(BASE64[(b1&0x0F)<<2]);
+					append('=');
+					break;
+					}
+				default: break;
+				}
+			nRest=0;
+			flush();
 			}
-
+		}
+	
+	/** escapes an attribute value as the XMLStreamWriter does: the apostrophe is not escaped */
+	private static String escapeXml(String s)
+		{
+		StringBuilder b=new StringBuilder(s.length());
+		for(int i=0;i< s.length();++i)
+			{
+			char c=s.charAt(i);
+			switch(c)
+				{
+				case '<': b.append("&lt;"); break;
+				case '>': b.append("&gt;"); break;
+				case '&': b.append("&amp;"); break;
+				case '"': b.append("&quot;"); break;
+				default: b.append(c); break;
+				}
+			}
+		return b.toString();
 		}
 	
 	public static void main(String[] args)
@@ -110,6 +188,7 @@ public class ImagesToBase64
 		try
 			{
 			int width=-1;
+			int lineLength=0;
 			int optind=0;
 			while(optind< args.length)
 				{
@@ -121,12 +200,17 @@ public class ImagesToBase64
 					System.err.println("Options:");
 					System.err.println(" -h help; This screen.");
 					System.err.println(" -w <width> (optional) force width.");
+					System.err.println(" -L <length> (optional) wrap the base64 lines. Default: no wrap.");
 					return;
 					}
 				else if(args[optind].equals("-w"))
 					{
 					width=Integer.parseInt(args[++optind]);
 					}
+				else if(args[optind].equals("-L"))
+					{
+					lineLength=Integer.parseInt(args[++optind]);
+					}
 				else if(args[optind].equals("--"))
 					{
 					optind++;
@@ -144,7 +228,8 @@ public class ImagesToBase64
 				++optind;
 				}
 			XMLOutputFactory xmlfactory= XMLOutputFactory.newInstance();
-			XMLStreamWriter w= xmlfactory.createXMLStreamWriter(System.out,"UTF-8");
+			Writer out=new BufferedWriter(new OutputStreamWriter(System.out,"UTF-8"));
+			XMLStreamWriter w= xmlfactory.createXMLStreamWriter(out);
 			w.writeStartDocument("UTF-8","1.0");
 			w.writeStartElement("html");
 			w.writeStartElement("body");
@@ -163,26 +248,19 @@ public class ImagesToBase64
                 		filename.startsWith("ftp://"))
                     	{
                     	is_url=true;
-                    	img=ImageIO.read(new URL(filename));
                     	}
-                    else
+                    img=(width!=-1?
+                    	ThumbnailCache.getInstance().fit(filename, width, -1):
+                    	ThumbnailCache.getInstance().read(filename)
+                    	);
+                    if(img==null)
                     	{
-                    	File f=new File(filename);
-                    	img=ImageIO.read(f);
-                    	filename=f.getName();
+                    	System.err.println("Cannot read "+filename);
+                    	continue;
                     	}
-                  	if(width!=-1 && img.getWidth()>width)
+                    if(!is_url)
                     	{
-                    	double ratio=((double)width/(double)img.getWidth());
-                    	BufferedImage img2=new BufferedImage(
-                    			width,
-                    			(int)(img.getHeight()*ratio),
-                    			BufferedImage.TYPE_INT_RGB
-                    			);
-                    	Graphics2D g=(Graphics2D)img2.getGraphics();
-                    	g.drawImage(img,0,0,img2.getWidth(),img2.getHeight(),null);
-                    	g.dispose();
-                    	img=img2;
+                    	filename=new File(filename).getName();
                     	}
                   	w.writeEmptyElement("br");
                   	w.writeCharacters("\n");
@@ -194,25 +272,21 @@ public class ImagesToBase64
                   		w.writeAttribute("href","filename");
                   		w.writeAttribute("target","_blank");
                   		}
-                  	w.writeEmptyElement("img");
-                	w.writeAttribute("width",String.valueOf(img.getWidth()));
-                	w.writeAttribute("height",String.valueOf(img.getHeight()));
+                  	/* the img element is written directly to 'out' so the
+                  	 * base64 data is streamed instead of being built as a String.
+                  	 * writeCharacters("") closes the pending start tag. */
+                  	w.writeCharacters("");
+                  	w.flush();
+                  	out.write("<img width=\""+img.getWidth()+"\" height=\""+img.getHeight()+"\"");
                 	if(!is_url)
                 		{
-                		w.writeAttribute("title",filename);
+                		out.write(" title=\""+escapeXml(filename)+"\"");
                 		}
-                	StringBuilder encoded=new StringBuilder("data:image/png;base64,");
-                	ByteArrayOutputStream baos=new ByteArrayOutputStream();
-                	ImageIO.write(img, "PNG", baos);
-                	baos.flush();
-                	baos.close();
-                	ByteArrayInputStream bais=new ByteArrayInputStream(baos.toByteArray());
-                	encode(bais,encoded);
-                	bais.close();
-                	
-                	
-                	w.writeAttribute("src",encoded.toString());
-                	
+                	out.write(" src=\"data:image/png;base64,");
+                	Base64OutputStream b64=new Base64OutputStream(out,lineLength);
+                	ImageIO.write(img, "PNG", b64);
+                	b64.close();
+                	out.write("\"/>");
                 	
                   	if(is_url)
                   		{
@@ -229,6 +303,7 @@ public class ImagesToBase64
 			w.writeEndDocument();
 			w.flush();
 			w.close();
+			out.flush();
 			} 
 		catch(Throwable err)
 			{
@@ -0,0 +1,168 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2015 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package sandbox;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * XMLReader converting a JSON stream to the SAX events of the same jsonx
+ * document as Json2Dom, without building it: can be used in a
+ * javax.xml.transform.sax.SAXSource
+ */
+public final class Json2Sax extends XMLFilterImpl {
+	private static final String NS = "http://www.ibm.com/xmlns/prod/2009/jsonx";
+	private static final String PREFIX = "jsonx";
+	private static final AttributesImpl NO_ATTRIBUTES = new AttributesImpl();
+
+	public Json2Sax() {
+	}
+
+	private void startElement(final String name, final String label) throws SAXException {
+		final AttributesImpl atts;
+		if (label != null) {
+			atts = new AttributesImpl();
+			atts.addAttribute("", "name", "name", "CDATA", label);
+		} else {
+			atts = NO_ATTRIBUTES;
+		}
+		getContentHandler().startElement(NS, name, PREFIX + ":" + name, atts);
+	}
+
+	private void endElement(final String name) throws SAXException {
+		getContentHandler().endElement(NS, name, PREFIX + ":" + name);
+	}
+
+	private void text(final String name, final String label, final String s) throws SAXException {
+		startElement(name, label);
+		final char array[] = s.toCharArray();
+		getContentHandler().characters(array, 0, array.length);
+		endElement(name);
+	}
+
+	private void parseObject(final String label, final JsonReader r) throws IOException, SAXException {
+		r.beginObject();
+		startElement("object", label);
+		for (;;) {
+			if (r.peek() == JsonToken.END_OBJECT) {
+				r.endObject();
+				break;
+			}
+			if (r.peek() != JsonToken.NAME)
+				throw new IllegalStateException(r.peek().name());
+			final String s = r.nextName();
+			parse(s, r);
+		}
+		endElement("object");
+	}
+
+	private void parseArray(final String label, final JsonReader r) throws IOException, SAXException {
+		r.beginArray();
+		startElement("array", label);
+		for (;;) {
+			if (r.peek() == JsonToken.END_ARRAY) {
+				r.endArray();
+				break;
+			}
+			parse(null, r);
+		}
+		endElement("array");
+	}
+
+	private void parse(final String label, final JsonReader r) throws IOException, SAXException {
+		if (!r.hasNext()) return;
+		final JsonToken token = r.peek();
+		switch (token) {
+		case BEGIN_OBJECT:
+			parseObject(label, r);
+			break;
+		case BEGIN_ARRAY:
+			parseArray(label, r);
+			break;
+		case NULL:
+			r.nextNull();
+			startElement("null", label);
+			endElement("null");
+			break;
+		case STRING:
+			text("string", label, r.nextString());
+			break;
+		case NUMBER: {
+			String s;
+			try {
+				s = String.valueOf(r.nextLong());
+			} catch (Exception err) {
+				s = String.valueOf(r.nextDouble());
+			}
+			text("number", label, s);
+			break;
+		}
+		case BOOLEAN:
+			text("boolean", label, String.valueOf(r.nextBoolean()));
+			break;
+		case END_DOCUMENT:
+			break;
+		default:
+			throw new IllegalStateException(token.name());
+		}
+	}
+
+	@Override
+	public void parse(final InputSource input) throws IOException, SAXException {
+		final ContentHandler handler = getContentHandler();
+		if (handler == null) throw new SAXException("no content handler");
+		Reader reader = input.getCharacterStream();
+		if (reader == null) {
+			if (input.getByteStream() != null) {
+				reader = new InputStreamReader(input.getByteStream(),
+						input.getEncoding() == null ? "UTF-8" : input.getEncoding());
+			} else {
+				reader = new InputStreamReader(new java.net.URL(input.getSystemId()).openStream(), "UTF-8");
+			}
+		}
+		final JsonReader jr = new JsonReader(reader);
+		jr.setLenient(true);
+		handler.startDocument();
+		handler.startPrefixMapping(PREFIX, NS);
+		parse(null, jr);
+		handler.endPrefixMapping(PREFIX);
+		handler.endDocument();
+	}
+
+	@Override
+	public void parse(final String systemId) throws IOException, SAXException {
+		parse(new InputSource(systemId));
+	}
+}
@@ -24,10 +24,27 @@ SOFTWARE.
 */
 package sandbox;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.xml.stream.XMLOutputFactory;
@@ -38,8 +55,79 @@ import com.google.gson.stream.JsonToken;
 public final class Json2Xml {
 	private static final String NS="http://www.ibm.com/xmlns/prod/2009/jsonx";
 	public static Logger LOG=Logger.getLogger("json2xml");
+	/** number of NDJSON records converted by a task */
+	private static final int BATCH_SIZE=1000;
+	/** input is NDJSON: one JSON record per line */
+	private boolean ndjson=false;
+	/** number of threads converting the NDJSON records */
+	private int nThreads=1;
 	
-	private Json2Xml() {}
+	Json2Xml() {}
+	
+	void setNdjson(final boolean ndjson)
+		{
+		this.ndjson=ndjson;
+		}
+	
+	void setThreads(final int nThreads)
+		{
+		this.nThreads=Math.max(1,nThreads);
+		}
+	
+	/** converts a batch of NDJSON lines to a fragment of XML */
+	private class Batch implements Callable<String>
+		{
+		private final List<String> records;
+		/** line number of the first record */
+		private final long firstLine;
+		private final XMLOutputFactory xof;
+		Batch(final List<String> records,final long firstLine,final XMLOutputFactory xof)
+			{
+			this.records=records;
+			this.firstLine=firstLine;
+			this.xof=xof;
+			}
+		@Override
+		public String call() throws Exception
+			{
+			final StringWriter sw=new StringWriter();
+			final XMLStreamWriter w;
+			synchronized(this.xof)
+				{
+				w = this.xof.createXMLStreamWriter(sw);
+				}
+			/* not repairing: the namespace is declared by the enclosing array */
+			w.setDefaultNamespace(NS);
+			for(int i=0;i< this.records.size();++i)
+				{
+				convertRecord(w,this.records.get(i),this.firstLine+i);
+				}
+			w.flush();
+			w.close();
+			return sw.toString();
+			}
+		}
+	
+	/** converts one line of NDJSON, ignored if blank. The line must hold exactly one JSON value */
+	private void convertRecord(final XMLStreamWriter w,final String line,final long lineNumber) throws Exception
+		{
+		if(line.trim().isEmpty()) return;
+		final JsonReader jr=new JsonReader(new StringReader(line));
+		jr.setLenient(true);
+		try
+			{
+			parse(w,null,jr);
+			if(jr.peek()!=JsonToken.END_DOCUMENT)
+				{
+				throw new IOException("expected one JSON record but got "+jr.peek());
+				}
+			}
+		catch(IOException err)
+			{
+			throw new IOException("line "+lineNumber+": "+err.getMessage(),err);
+			}
+		w.writeCharacters("\n");
+		}
 	
 	private void parseObject(final XMLStreamWriter w,final String label,final JsonReader r) throws Exception
 		{
@@ -149,19 +237,144 @@ public final class Json2Xml {
 			
 		}
 	
+	/** converts the JSON document, or the NDJSON records, read from 'r' */
+	void convert(final Reader r,final OutputStream os) throws Exception
+		{
+		final XMLOutputFactory xof = XMLOutputFactory.newFactory();
+		xof.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+		final Writer out=new BufferedWriter(new OutputStreamWriter(os,"UTF-8"));
+		final XMLStreamWriter w = xof.createXMLStreamWriter(out);
+		w.setDefaultNamespace(NS);
+		w.writeStartDocument("UTF-8", "1.0");
+		if(!this.ndjson)
+			{
+			final JsonReader jr = new JsonReader(r);
+			jr.setLenient(true);
+			parse(w,null,jr);
+			}
+		else
+			{
+			/* the records are the items of an array */
+			w.writeStartElement(NS, "array");
+			w.writeCharacters("\n");
+			if(this.nThreads<=1)
+				{
+				final BufferedReader in=new BufferedReader(r);
+				long nLine=0L;
+				String line;
+				while((line=in.readLine())!=null)
+					{
+					convertRecord(w,line,++nLine);
+					}
+				}
+			else
+				{
+				convertParallel(new BufferedReader(r),w,out);
+				}
+			w.writeEndElement();
+			}
+		w.writeEndDocument();
+		w.flush();
+		w.close();
+		out.flush();
+		}
+	
+	/**
+	 * the records are converted by batches in a pool of threads; the fragments
+	 * are written in the order of the input. At most 2*nThreads batches are
+	 * pending, so the memory doesn't depend on the size of the input.
+	 */
+	private void convertParallel(final BufferedReader in,final XMLStreamWriter w,final Writer out) throws Exception
+		{
+		final XMLOutputFactory fragmentFactory = XMLOutputFactory.newFactory();
+		final ExecutorService executor=Executors.newFixedThreadPool(this.nThreads);
+		final Deque<Future<String>> pending=new ArrayDeque<Future<String>>();
+		/* writeCharacters("") closes the start tag before writing directly to 'out' */
+		w.writeCharacters("");
+		w.flush();
+		try
+			{
+			List<String> records=new ArrayList<String>(BATCH_SIZE);
+			long nLine=0L;
+			for(;;)
+				{
+				final String line=in.readLine();
+				if(line!=null) records.add(line);
+				if(records.size()==BATCH_SIZE || (line==null && !records.isEmpty()))
+					{
+					/* the blank lines are kept in the batch, so the lines are numbered from the first one */
+					pending.add(executor.submit(new Batch(records,nLine+1,fragmentFactory)));
+					nLine+=records.size();
+					records=new ArrayList<String>(BATCH_SIZE);
+					}
+				while(!pending.isEmpty() && (line==null || pending.size()>=2*this.nThreads))
+					{
+					try
+						{
+						out.write(pending.removeFirst().get());
+						}
+					catch(ExecutionException err)
+						{
+						throw new Exception(err.getCause());
+						}
+					}
+				if(line==null) break;
+				}
+			}
+		finally
+			{
+			executor.shutdownNow();
+			}
+		}
+	
 	public static void main(String[] args) {
 		try {
 			Json2Xml app = new Json2Xml();
+			int optind=0;
+			while(optind< args.length)
+				{
+				if(args[optind].equals("-h"))
+					{
+					System.out.println("Options:");
+					System.out.println(" -h help; This screen.");
+					System.out.println(" -n input is NDJSON: one JSON record per line. The records are the items of an array.");
+					System.out.println(" -t (int) number of threads converting the NDJSON records. Default: "+app.nThreads);
+					System.out.println("(stdin|file.json)");
+					return;
+					}
+				else if(args[optind].equals("-n"))
+					{
+					app.ndjson=true;
+					}
+				else if(args[optind].equals("-t") && optind+1< args.length)
+					{
+					app.nThreads=Math.max(1,Integer.parseInt(args[++optind]));
+					}
+				else if(args[optind].equals("--"))
+					{
+					optind++;
+					break;
+					}
+				else if(args[optind].startsWith("-"))
+					{
+					System.err.println("Unknown option "+args[optind]);
+					System.exit(-1);
+					}
+				else
+					{
+					break;
+					}
+				++optind;
+				}
 			Reader r = null;
-			JsonReader jr=null;
-			if(args.length==0)
+			if(optind==args.length)
 				{
 				LOG.info("reading JSON from stdin");
 				r = new InputStreamReader(System.in);
 				}
-			else if(args.length==1)
+			else if(optind+1==args.length)
 				{
-				r  = new FileReader(new File(args[0]));
+				r  = new FileReader(new File(args[optind]));
 				}		
 			else
 				{
@@ -169,20 +382,8 @@ public final class Json2Xml {
 				System.exit(-1);
 				}
 			
-			
-			jr = new JsonReader(r);
-			jr.setLenient(true);
-			XMLOutputFactory xof = XMLOutputFactory.newFactory();
-			xof.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
-			XMLStreamWriter w = xof.createXMLStreamWriter(System.out,"UTF-8");
-			w.setDefaultNamespace(NS);
-			w.writeStartDocument("UTF-8", "1.0");
-			
-			app.parse(w,null,jr);
-			w.writeEndDocument();
-			w.flush();
-			w.close();
-			IOUtils.close(jr);
+			app.convert(r,System.out);
+			IOUtils.close(r);
 			System.exit(0);
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,129 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2015 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package sandbox;
+
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * Compares the conversion of NDJSON records by Json2Xml (one thread and
+ * 'threads' threads) with the DOM path: Json2Dom parsing the same records
+ * as one JSON array, then serialized by a Transformer.
+ *
+ * make json2xmlbench && java -jar dist/json2xmlbench.jar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+@Fork(1)
+public class Json2XmlBenchmark {
+	/** discards the XML */
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Param({ "10000" })
+	public int records;
+
+	@Param({ "4" })
+	public int threads;
+
+	/** the records, one per line */
+	private String ndjson;
+	/** the same records in a JSON array */
+	private String array;
+
+	@Setup
+	public void setup() {
+		final Random random = new Random(0L);
+		final StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < this.records; ++i) {
+			lines.append("{\"id\":").append(i).
+				append(",\"name\":\"record ").append(i).append("\"").
+				append(",\"score\":").append(random.nextDouble()).
+				append(",\"valid\":").append(random.nextBoolean()).
+				append(",\"tags\":[\"a\",\"b\",null],\"pos\":{\"x\":").append(random.nextInt(1000)).
+				append(",\"y\":").append(random.nextInt(1000)).append("}}\n");
+		}
+		this.ndjson = lines.toString();
+		this.array = "[" + this.ndjson.trim().replace("\n", ",") + "]";
+	}
+
+	@Benchmark
+	public void ndjson() throws Exception {
+		final Json2Xml app = new Json2Xml();
+		app.setNdjson(true);
+		app.convert(new StringReader(this.ndjson), NULL_OUTPUT);
+	}
+
+	@Benchmark
+	public void ndjsonParallel() throws Exception {
+		final Json2Xml app = new Json2Xml();
+		app.setNdjson(true);
+		app.setThreads(this.threads);
+		app.convert(new StringReader(this.ndjson), NULL_OUTPUT);
+	}
+
+	@Benchmark
+	public void dom() throws Exception {
+		final Document dom = new Json2Dom().parse(new StringReader(this.array));
+		final Transformer tr = TransformerFactory.newInstance().newTransformer();
+		tr.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+		tr.transform(new DOMSource(dom), new StreamResult(NULL_OUTPUT));
+	}
+
+	public static void main(final String[] args) throws Exception {
+		org.openjdk.jmh.Main.main(args);
+	}
+}
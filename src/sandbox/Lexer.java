@@ -1,74 +1,139 @@
 package sandbox;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Lexer implements Closeable {
-	public static final int EOF = 1;
+	public static final int EOF = -1;
 	private final Reader r;
-	private final List<Integer> buffer=new ArrayList<Integer>();
+	/** lookahead: a ring of chars, its capacity is a power of 2 */
+	private char[] buffer = new char[1024];
+	/** index of the first char in 'buffer' */
+	private int head = 0;
+	/** number of chars in 'buffer' */
+	private int size = 0;
+	/** true when the reader returned EOF */
+	private boolean endOfInput = false;
+
+	/**
+	 * a CharSequence view of the lookahead, without copy. It is valid until
+	 * the buffer is filled or consumed.
+	 */
+	private class Window implements CharSequence {
+		private final int start;
+		private final int length;
+		Window(final int start, final int length) {
+			this.start = start;
+			this.length = length;
+		}
+		@Override
+		public int length() {
+			return this.length;
+		}
+		@Override
+		public char charAt(final int index) {
+			if (index < 0 || index >= this.length) throw new IndexOutOfBoundsException(String.valueOf(index));
+			return buffer[(head + this.start + index) & (buffer.length - 1)];
+		}
+		@Override
+		public CharSequence subSequence(final int begin, final int end) {
+			if (begin < 0 || end > this.length || begin > end) throw new IndexOutOfBoundsException();
+			return new Window(this.start + begin, end - begin);
+		}
+		@Override
+		public String toString() {
+			final char[] array = new char[this.length];
+			for (int i = 0; i < this.length; ++i) array[i] = charAt(i);
+			return new String(array);
+		}
+	}
+
 	public Lexer(final Reader r) {
 		this.r=r;
 	}
-	
+
+	/** reads until the buffer contains more than <code>pos</code> chars or EOF is reached */
+	private void fill(final int pos) throws IOException {
+		while (this.size <= pos && !this.endOfInput) {
+			if (this.size == this.buffer.length) {
+				/* grow: the ring is copied from its head */
+				final char[] array = new char[this.buffer.length * 2];
+				final int first = Math.min(this.size, this.buffer.length - this.head);
+				System.arraycopy(this.buffer, this.head, array, 0, first);
+				System.arraycopy(this.buffer, 0, array, first, this.size - first);
+				this.buffer = array;
+				this.head = 0;
+			}
+			final int tail = (this.head + this.size) & (this.buffer.length - 1);
+			final int free = Math.min(this.buffer.length - this.size, this.buffer.length - tail);
+			final int n = this.r.read(this.buffer, tail, free);
+			if (n == -1) {
+				this.endOfInput = true;
+			} else {
+				this.size += n;
+			}
+		}
+	}
+
 	/** @return true if no more input is available */
-	public boolean eof() {
+	public boolean eof() throws IOException {
 		return this.peek() == EOF ;
 	}
-	
-	/** @return next byte in stream. -1 on EOF */
+
+	/** @return next char in stream. -1 on EOF */
 	public int peek() throws IOException
 	{
 		return peek(0);
 	}
-	
-	/** @return byte in stream at position <code>pos</code>. -1 on EOF */
+
+	/** @return char in stream at position <code>pos</code>. -1 on EOF */
 	public int peek(final int pos) throws IOException
 		{
-		while(buffer.size()<=pos) {
-			int c= this.r.read();
-			if(c==EOF) return EOF;
-			buffer.add(c);
-			}
-		
-		return buffer.get(pos);
+		if (pos >= this.size) fill(pos);
+		if (pos >= this.size) return EOF;
+		return this.buffer[(this.head + pos) & (this.buffer.length - 1)];
 		}
-	
+
 	public boolean downstream(final int pos,String s)  throws IOException {
+		fill(pos + s.length() - 1);
+		if (pos + s.length() > this.size) return false;
 		for(int i=0;i< s.length();i++) {
-			int c = peek(pos+i);
-			if(c==EOF ||c!=(int)s.charAt(i)) return false;
+			if(this.buffer[(this.head + pos + i) & (this.buffer.length - 1)] != s.charAt(i)) return false;
 		}
 		return true;
 	}
-	
+
 	public boolean downstream(final String s)  throws IOException {
 			return downstream(0, s);
 		}
-	
+
+	/**
+	 * removes <code>n</code> chars at position <code>pos</code>. O(1) when <code>pos</code> is 0,
+	 * otherwise the <code>pos</code> chars before are moved.
+	 * @return the char now at position <code>pos</code>
+	 */
 	public int consume(int pos,int n) throws IOException {
-		for(int i=0;i< n &&  pos+i< buffer.size();++i) {
-			buffer.remove(pos+i);
-			n--;
-		}
-		while(n>0) {
-			int c= this.r.read();
-			if(c==EOF) return EOF;
-			n--;
+		if (n <= 0) return peek(pos);
+		fill(pos + n - 1);
+		n = Math.min(n, Math.max(0, this.size - pos));
+		final int mask = this.buffer.length - 1;
+		for (int i = pos - 1; i >= 0; --i) {
+			this.buffer[(this.head + i + n) & mask] = this.buffer[(this.head + i) & mask];
 		}
+		this.head = (this.head + n) & mask;
+		this.size -= n;
 		return peek(pos);
 	}
-	
+
 	public int consume(int n)  throws IOException {
 		return consume(0,n);
 	}
-	
+
 	public int skipWithspaces()  throws IOException {
 		int c;
 		while((c=this.peek())!=EOF && Character.isWhitespace(c)) {
@@ -76,17 +141,21 @@ public class Lexer implements Closeable {
 		}
 		return c;
 	}
-	
+
 	@Override
 	public void close() throws IOException {
-		buffer.clear();
+		this.size = 0;
 		r.close();
 		}
-	
+
+	/** consumes and returns the next char */
 	public char nextChar()  throws IOException {
-		
+		final int c = peek();
+		if (c == EOF) throw new EOFException();
+		consume(1);
+		return (char)c;
 	}
-	
+
 	private static final Pattern BIGINTEGER = Pattern.compile("[+-]?[0-9]+");
 	public java.math.BigInteger nextBigInteger(int pos) throws IOException {
 		final String s = peek(pos,BIGINTEGER);
@@ -95,25 +164,32 @@ public class Lexer implements Closeable {
 		consume(pos,s.length());
 		return bi;
 	}
-	
+
+	/**
+	 * consumes a string at position <code>pos</code> quoted with <code>qc</code>; a backslash escapes the
+	 * next char.
+	 * @return the unquoted string or null
+	 */
 	public String quoted(int pos,char qc) throws IOException {
 		  final StringBuilder sb=new StringBuilder();
 		  if(peek(pos)!=(int)qc) return null;
-		  int n=1;
 		  int idx=pos+1;
 		  for(;;) {
 			  int c = peek(idx);
-			  if(c==-1) return null;
+			  if(c==EOF) return null;
 			  if(c==(int)qc) {
-				  consume(pos,n);
+				  consume(pos,idx+1-pos);
 				  return sb.toString();
 			  }
-			 return null;
+			  if(c=='\\') {
+				  c = peek(++idx);
+				  if(c==EOF) return null;
+			  }
+			  sb.append((char)c);
+			  ++idx;
 		  }
-		  
-		  
 	}
-	
+
     public String peek(final Pattern pattern) throws IOException {
     		return peek(0,pattern);
     }
@@ -122,36 +198,34 @@ public class Lexer implements Closeable {
 		return peekRegex(0,pattern);
 }
 
-    
+
     public String peekRegex(int pos,final String pattern) throws IOException {
     	return peek(pos,Pattern.compile(pattern));
     }
-    
+
+    /**
+     * matches the pattern against a view of the buffer at position <code>pos</code>.
+     * The buffer is filled while the matcher hits its end.
+     * @return the non-empty matched string or null
+     */
     public String peek(int pos,final Pattern pattern) throws IOException {
-    	String prevMatch=null;
-    	int c;
-    	if((c=peek(pos))==-1) return null;
-        final StringBuilder sb=new StringBuilder();
-        sb.append((char)c);
-        
+    	if(peek(pos)==EOF) return null;
+    	int want = Math.max(64, this.size - pos);
         for(;;) {
-        	final Matcher matcher1=pattern.matcher(sb);
+        	fill(pos + want - 1);
+        	final Matcher matcher1=pattern.matcher(new Window(pos, this.size - pos));
         	/* Attempts to match the input sequence, starting at the beginning of the region, against the pattern.*/
-        	if (matcher1.lookingAt())
+        	final boolean found = matcher1.lookingAt();
+        	if (matcher1.hitEnd() && !this.endOfInput)
         		{
-        		if(matcher1.hitEnd()) {
-        			prevMatch =  sb.toString();
-        			}
-        		++pos;
-        		if((c=peek(pos))==-1) return prevMatch;
-        		sb.append((char)c);
-        		} 
-        	else {
-        		return prevMatch;
-        	}
-        }       
+        		want = Math.max(want * 2, this.size - pos + 1);
+        		continue;
+        		}
+        	if (!found || matcher1.end() == 0) return null;
+        	return matcher1.group();
+        }
     }
-   
+
   public static void main(String[] args) {
 	try {
 		Lexer in = new Lexer(new StringReader("GATAADYHAY azd azd"));
@@ -160,6 +234,6 @@ public class Lexer implements Closeable {
 	} catch (Exception e) {
 		e.printStackTrace();
 	}
-}  
-    
+}
+
 }
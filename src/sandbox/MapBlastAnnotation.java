@@ -13,18 +13,30 @@
 package sandbox;
 import java.awt.Color;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.w3c.dom.Document;
 import org.xml.sax.EntityResolver;
@@ -561,54 +573,137 @@ public class MapBlastAnnotation
 			}
 		}
 
-	private void printUniprot(Uniprot uniprotSet)
+	/**
+	 * Features sorted on their query coordinates. maxEnd0[i] is the greatest
+	 * end of the features 0..i, so a query only visits the features that can
+	 * overlap it.
+	 */
+	private static class FeatureIndex
 		{
-		if(uniprotSet.getEntry().isEmpty())
+		private int ordinals[];
+		private int start0[];
+		private int end0[];
+		private int maxEnd0[];
+		
+		FeatureIndex(final List<? extends Interval> features)
 			{
-			LOG.warning("empty uniprot entry.");
-			return;
+			final int n=features.size();
+			Integer order[]=new Integer[n];
+			final int starts[]=new int[n];
+			for(int i=0;i< n;++i)
+				{
+				order[i]=i;
+				starts[i]=features.get(i).featureStart0();
+				}
+			Arrays.sort(order,new Comparator<Integer>()
+				{
+				@Override
+				public int compare(Integer o1, Integer o2)
+					{
+					return starts[o1]-starts[o2];
+					}
+				});
+			this.ordinals=new int[n];
+			this.start0=new int[n];
+			this.end0=new int[n];
+			this.maxEnd0=new int[n];
+			for(int i=0;i< n;++i)
+				{
+				this.ordinals[i]=order[i];
+				this.start0[i]=starts[order[i]];
+				this.end0[i]=features.get(order[i]).featureEnd0();
+				this.maxEnd0[i]=(i==0?this.end0[i]:Math.max(this.maxEnd0[i-1],this.end0[i]));
+				}
 			}
-
-		if(uniprotSet.getEntry().size()>1)
+		
+		/** add the ordinals of the features overlapping [qStart0,qEnd0[ */
+		void overlapping(int qStart0,int qEnd0,List<Integer> ordinalsOut)
+			{
+			/* first feature starting at or after qEnd0 */
+			int lo=0,hi=this.start0.length;
+			while(lo< hi)
+				{
+				int mid=(lo+hi)>>>1;
+				if(this.start0[mid]< qEnd0) lo=mid+1;
+				else hi=mid;
+				}
+			for(int i=lo-1;i>=0 && this.maxEnd0[i]> qStart0;--i)
+				{
+				if(this.end0[i]> qStart0) ordinalsOut.add(this.ordinals[i]);
+				}
+			}
+		}
+	
+	/**
+	 * print the features overlapping the HSPs of this iteration.
+	 * The BED lines are printed in the order feature/hit/hsp.
+	 */
+	private void printOverlaps(Iteration iteration,List<? extends Interval> features)
+		{
+		if(features.isEmpty()) return;
+		List<Hit> hits=iteration.getIterationHits().getHit();
+		if(hits.isEmpty()) return;
+		FeatureIndex index=new FeatureIndex(features);
+		List<int[]> matches=new ArrayList<int[]>();
+		List<Integer> ordinals=new ArrayList<Integer>();
+		for(int h=0;h< hits.size();++h)
+			{
+			List<Hsp> hsps=hits.get(h).getHitHsps().getHsp();
+			for(int k=0;k< hsps.size();++k)
+				{
+				Hsp hsp=hsps.get(k);
+				int q1=Integer.parseInt(hsp.getHspQueryFrom());
+				int q2=Integer.parseInt(hsp.getHspQueryTo());
+				ordinals.clear();
+				index.overlapping(Math.min(q1,q2)-1, Math.max(q1,q2), ordinals);
+				for(Integer f:ordinals)
+					{
+					matches.add(new int[]{f,h,k});
+					}
+				}
+			}
+		Collections.sort(matches,new Comparator<int[]>()
+			{
+			@Override
+			public int compare(int[] o1, int[] o2)
+				{
+				for(int i=0;i< o1.length;++i)
+					{
+					if(o1[i]!=o2[i]) return o1[i]< o2[i]?-1:1;
+					}
+				return 0;
+				}
+			});
+		for(int[] m:matches)
 			{
-			LOG.warning("entry contains more than one sequence.");
+			Interval bi=features.get(m[0]);
+			bi.hit=hits.get(m[1]);
+			bi.hsp=bi.hit.getHitHsps().getHsp().get(m[2]);
+			LOG.info("interval "+bi);
+			System.out.println(bi.toBedString());
 			}
+		}
+	
+	private void printUniprot(Uniprot uniprotSet,Iteration iteration)
+		{
 		for(Entry entry:uniprotSet.getEntry())
 			{	
-			BlastOutputIterations iterations=this.blastOutput.getBlastOutputIterations();
-			for(Iteration iteration:iterations.getIteration())
+			List<UniprotInterval> features=new ArrayList<UniprotInterval>();
+			for(FeatureType feature:entry.getFeature())
 				{
-				for(FeatureType feature:entry.getFeature())
+				if(!this.restrictTofeatureKey.isEmpty())
 					{
-					if(!this.restrictTofeatureKey.isEmpty())
-						{
-						if(!restrictTofeatureKey.contains(feature.getType()))
-							{
-							continue;
-							}
-						}
-					for(Hit hit:iteration.getIterationHits().getHit())
+					if(!restrictTofeatureKey.contains(feature.getType()))
 						{
-						for(Hsp hsp :hit.getHitHsps().getHsp())
-							{
-							UniprotInterval bi=new UniprotInterval();
-						
-							bi.entry=entry;
-							bi.featureType=feature;
-							bi.hit=hit;
-							bi.hsp=hsp;
-							LOG.info("interval "+bi);
-							if(!bi.isFeatureOverlapHsp())
-								{
-								continue;
-								}
-							System.out.println(bi.toBedString());
-							}
+						continue;
 						}
-					
 					}
-				break;
+				UniprotInterval bi=new UniprotInterval();
+				bi.entry=entry;
+				bi.featureType=feature;
+				features.add(bi);
 				}
+			printOverlaps(iteration,features);
 			}
 		
 		//System.err.println("OK");
@@ -617,53 +712,37 @@ public class MapBlastAnnotation
 	
 	
 	
-	private void printGB(GBSet gbSet)
+	private void printGB(GBSet gbSet,Iteration iteration)
 		{
 		for(GBSeq gbSeq:gbSet.getGBSeq())
 			{	
-			BlastOutputIterations iterations=this.blastOutput.getBlastOutputIterations();
-			for(Iteration iteration:iterations.getIteration())
+			List<GenbankInterval> features=new ArrayList<GenbankInterval>();
+			for(GBFeature feature:gbSeq.getGBSeqFeatureTable().getGBFeature())
 				{
-				for(GBFeature feature:gbSeq.getGBSeqFeatureTable().getGBFeature())
+				if(feature.getGBFeatureIntervals()==null) continue;
+				
+				
+				if(!this.restrictTofeatureKey.isEmpty())
 					{
-					if(feature.getGBFeatureIntervals()==null) continue;
-					
-					
-					if(!this.restrictTofeatureKey.isEmpty())
+					if(!restrictTofeatureKey.contains(feature.getGBFeatureKey()))
 						{
-						if(!restrictTofeatureKey.contains(feature.getGBFeatureKey()))
-							{
-							continue;
-							}
+						continue;
 						}
+					}
 
-					
-					for(GBInterval interval:feature.getGBFeatureIntervals().getGBInterval())
-						{
-		
-						for(Hit hit:iteration.getIterationHits().getHit())
-							{
-							for(Hsp hsp :hit.getHitHsps().getHsp())
-								{
-								GenbankInterval bi=new GenbankInterval();
-								bi.gbSeq=gbSeq;
-								bi.gbFeature=feature;
-								bi.gbInterval=interval;
-								bi.hit=hit;
-								bi.hsp=hsp;
-								LOG.info("interval "+bi);
-								if(!bi.isGbForward()) LOG.info("CHECK INTERVAL REVERSE");
-								if(!bi.isFeatureOverlapHsp()) continue;
-								System.out.println(bi.toBedString());
-								}
-							
-							}
-						
-						}
-					
+				
+				for(GBInterval interval:feature.getGBFeatureIntervals().getGBInterval())
+					{
+					GenbankInterval bi=new GenbankInterval();
+					bi.gbSeq=gbSeq;
+					bi.gbFeature=feature;
+					bi.gbInterval=interval;
+					if(!bi.isGbForward()) LOG.info("CHECK INTERVAL REVERSE");
+					features.add(bi);
 					}
-				break;
+				
 				}
+			printOverlaps(iteration,features);
 			}
 		
 		//System.err.println("OK");
@@ -697,6 +776,7 @@ public class MapBlastAnnotation
 				return new InputSource(new StringReader(""));
 				}
 			});
+		boolean streaming=false;
 		//create a Unmarshaller for NCBI
 		JAXBContext jc = JAXBContext.newInstance(
 				"sandbox.ncbi.blast:sandbox.ncbi.gb:sandbox.uniprot");
@@ -712,6 +792,7 @@ public class MapBlastAnnotation
 				System.out.println("Options:");
 				System.out.println(" -h this screen");
 				System.out.println(" -F (string) restict to that  featureType. Can be called multiple times.");
+				System.out.println(" -S streaming mode: the BLAST output is read with StAX, one Iteration at a time, and the annotations are mapped on every Iteration.");
 				System.out.println(" [XML GBSet Result| uniprot XML] [XML NCBI BLAST results]");
 				return;
 				}
@@ -719,6 +800,10 @@ public class MapBlastAnnotation
 				{
 				this.restrictTofeatureKey.add(args[++optind]);
 				}
+			else if(args[optind].equals("-S"))
+				{
+				streaming=true;
+				}
 			else if(args[optind].equals("-L") && optind+1< args.length)
 				{
 				LOG.setLevel(Level.parse(args[++optind]));
@@ -759,6 +844,35 @@ public class MapBlastAnnotation
 			LOG.info("parsing as Uniprot");
 			uniprotSet=unmarshaller.unmarshal(domEntry,Uniprot.class).getValue();	
 			}
+		if(uniprotSet!=null)
+			{
+			if(uniprotSet.getEntry().isEmpty())
+				{
+				LOG.warning("empty uniprot entry.");
+				return;
+				}
+			if(uniprotSet.getEntry().size()>1)
+				{
+				LOG.warning("entry contains more than one sequence.");
+				}
+			}
+		if(streaming)
+			{
+			InputStream in;
+			if(optind+2==args.length)
+				{
+				LOG.info("streaming "+args[optind+1]);
+				in=new FileInputStream(args[optind+1]);
+				}
+			else
+				{
+				LOG.info("streaming from stdin");
+				in=System.in;
+				}
+			streamBlast(in,unmarshaller,gbSet,uniprotSet);
+			in.close();
+			return;
+			}
 		Document blastDom;
 		if(optind+2==args.length)
 			{
@@ -771,8 +885,53 @@ public class MapBlastAnnotation
 			blastDom=docBuilder.parse(System.in);
 			}
 		this.blastOutput=unmarshaller.unmarshal(blastDom,BlastOutput.class).getValue();	
-		if(uniprotSet!=null) printUniprot(uniprotSet);
-		if(gbSet!=null) printGB(gbSet);
+		BlastOutputIterations iterations=this.blastOutput.getBlastOutputIterations();
+		for(Iteration iteration:iterations.getIteration())
+			{
+			if(uniprotSet!=null) printUniprot(uniprotSet,iteration);
+			if(gbSet!=null) printGB(gbSet,iteration);
+			break;
+			}
+		}
+	
+	/**
+	 * reads the BLAST output with a StAX parser. Only the header (program) is kept
+	 * in 'blastOutput'; each Iteration is unmarshalled, printed and discarded.
+	 */
+	private void streamBlast(InputStream in,Unmarshaller unmarshaller,GBSet gbSet,Uniprot uniprotSet)
+		throws XMLStreamException,JAXBException
+		{
+		XMLInputFactory xif=XMLInputFactory.newInstance();
+		xif.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+		xif.setProperty(XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
+		xif.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		XMLStreamReader r=xif.createXMLStreamReader(in);
+		this.blastOutput=new BlastOutput();
+		int nIterations=0;
+		while(r.hasNext())
+			{
+			if(r.getEventType()!=XMLStreamConstants.START_ELEMENT)
+				{
+				r.next();
+				continue;
+				}
+			String name=r.getLocalName();
+			if(name.equals("BlastOutput_program"))
+				{
+				this.blastOutput.setBlastOutputProgram(r.getElementText());
+				}
+			else if(name.equals("Iteration"))
+				{
+				//the unmarshaller consumes the whole element
+				Iteration iteration=unmarshaller.unmarshal(r,Iteration.class).getValue();
+				LOG.info("iteration "+(++nIterations));
+				if(uniprotSet!=null) printUniprot(uniprotSet,iteration);
+				if(gbSet!=null) printGB(gbSet,iteration);
+				continue;
+				}
+			r.next();
+			}
+		r.close();
 		}
 	public static void main(String[] args) throws Exception
 		{
@@ -8,10 +8,15 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.URL;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
@@ -25,10 +30,82 @@ public class MosaicOfPictures extends AbstractApplication
 	private static final Logger LOG=Logger.getLogger("lindenb");
 	
 	
+	private int nThreads=Runtime.getRuntime().availableProcessors();
+	
 	private MosaicOfPictures()
 		{
 		}
 	
+	/** a picture scaled to the size of a tile */
+	private static class Tile
+		{
+		int index;
+		String file;
+		BufferedImage image=null;
+		}
+	
+	/** fetches, decodes and scales one picture */
+	private static class TileLoader implements Callable<Tile>
+		{
+		private final Tile tile=new Tile();
+		private final double one_length;
+		private final boolean squareinside;
+		
+		TileLoader(int index,String file,double one_length,boolean squareinside)
+			{
+			this.tile.index=index;
+			this.tile.file=file;
+			this.one_length=one_length;
+			this.squareinside=squareinside;
+			}
+		
+		@Override
+		public Tile call() throws Exception
+			{
+			/* decoded at about the size of a tile */
+			final int size=(int)Math.ceil(one_length);
+			BufferedImage img2 = (squareinside?
+				ThumbnailCache.getInstance().cover(tile.file, size):
+				ThumbnailCache.getInstance().fit(tile.file, size, size)
+				);
+			if(img2==null) return tile;
+			double w=img2.getWidth();
+			double h=img2.getHeight();
+			
+			
+		    if(squareinside) {
+			  if(w>h ) {
+			        img2 = img2.getSubimage((int)((w-h)/2.0),0,(int)h,(int)h);
+			        w=h;
+			        }
+			   else //h>w
+			        {
+			        img2 = img2.getSubimage(0,(int)((h-w)/2.0),(int)w,(int)w);
+			        h=w;
+			        }
+			    }
+			double ratio=w/h;
+
+		    while(w>one_length || h> one_length)
+			    {
+			    w*=0.99999;
+			    h=w/ratio;
+			    }
+		    BufferedImage scaled=new BufferedImage(
+		    		Math.max(1,(int)w),
+		    		Math.max(1,(int)h),
+		    		BufferedImage.TYPE_INT_RGB
+		    		);
+		    Graphics2D g=scaled.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(img2,0,0,scaled.getWidth(),scaled.getHeight(),null);
+			g.dispose();
+			tile.image=scaled;
+			return tile;
+			}
+		}
+	
 	private Set<String> readPictures(BufferedReader r)
 		throws IOException
 		{
@@ -55,6 +132,7 @@ public class MosaicOfPictures extends AbstractApplication
 		options.addOption(Option.builder("c").longOpt("width").desc("final image width").hasArg(true).build());
 		options.addOption(Option.builder("o").longOpt("out").desc("image output").hasArg(true).build());	
 		options.addOption(Option.builder("x").longOpt("extend").desc("square INSIDE picture").hasArg(false).build());
+		options.addOption(Option.builder("t").longOpt("threads").desc("number of parallel downloads. Default: "+nThreads).hasArg(true).build());
 		super.fillOptions(options);
 		}
 	
@@ -71,6 +149,10 @@ public class MosaicOfPictures extends AbstractApplication
 				{
 				image_size= Integer.parseInt(cmd.getOptionValue('c'));
 				}
+			if(cmd.hasOption('t'))
+				{
+				nThreads= Math.max(1,Integer.parseInt(cmd.getOptionValue('t')));
+				}
 			if(cmd.hasOption('o'))
 				{
 				outFile= new File(cmd.getOptionValue('o'));
@@ -105,8 +187,8 @@ public class MosaicOfPictures extends AbstractApplication
 				LOG.severe("No images");
 				return -1;
 				}
-			int per_side=(int)Math.ceil(Math.sqrt(picts.size()));
-			double one_length =image_size/Math.ceil(Math.sqrt(picts.size()));
+			final int per_side=(int)Math.ceil(Math.sqrt(picts.size()));
+			final double one_length =image_size/Math.ceil(Math.sqrt(picts.size()));
 			
 			
 			BufferedImage img=new BufferedImage(
@@ -117,68 +199,47 @@ public class MosaicOfPictures extends AbstractApplication
 			Graphics2D g=img.createGraphics();
 			g.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
 			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-	
-			int y=0;
-			int x=0;
-			int nReads=0;
-			for(String file:picts)
+			
+			/* fetch and decode the pictures in parallel, at most 2*nThreads tiles are pending */
+			final ExecutorService executor=Executors.newFixedThreadPool(nThreads);
+			final CompletionService<Tile> completion=new ExecutorCompletionService<Tile>(executor);
+			try
 				{
-				++nReads;
-				LOG.info(file+" "+nReads+"/"+picts.size());
-				BufferedImage img2 = null;
-				if( file.startsWith("http://") ||
-					file.startsWith("https://") ||
-					file.startsWith("ftp://"))
-					{
-					img2=ImageIO.read(new URL(file));
-					}
-				else
+				final int maxPending=2*nThreads;
+				final Iterator<String> iter=picts.iterator();
+				int index=0;
+				int pending=0;
+				int nReads=0;
+				while(iter.hasNext() || pending>0)
 					{
-					img2=ImageIO.read(new File(file));
-					}
-				if(img2==null)
-					{
-					LOG.severe("Cannot read "+file);
-					return -1;
-					}
-				double w=img2.getWidth();
-				double h=img2.getHeight();
-				
-				
-			    if(squareinside) {
-				  if(w>h ) {
-				        img2 = img2.getSubimage((int)((w-h)/2.0),0,(int)h,(int)h);
-				        w=h;
-				        }
-				   else //h>w
-				        {
-				        img2 = img2.getSubimage(0,(int)((h-w)/2.0),(int)w,(int)w);
-				        h=w;
-				        }
-				    }
-				double ratio=w/h;
-
-				    while(w>one_length || h> one_length)
-					    {
-					    w*=0.99999;
-					    h=w/ratio;
-					    }
-				    g.drawImage(
-						    img2,
-						    (int)(x*one_length+(one_length-(int)w)/2.0),
-						    (int)(y*one_length+(one_length-(int)h)/2.0),
-						    (int)w,
-						    (int)h,
+					while(iter.hasNext() && pending< maxPending)
+						{
+						completion.submit(new TileLoader(index++,iter.next(),one_length,squareinside));
+						++pending;
+						}
+					final Tile tile=completion.take().get();
+					--pending;
+					++nReads;
+					LOG.info(tile.file+" "+nReads+"/"+picts.size());
+					if(tile.image==null)
+						{
+						LOG.severe("Cannot read "+tile.file);
+						return -1;
+						}
+					/* draw the tile as soon as it arrives */
+					int x= tile.index%per_side;
+					int y= tile.index/per_side;
+					g.drawImage(
+						    tile.image,
+						    (int)(x*one_length+(one_length-tile.image.getWidth())/2.0),
+						    (int)(y*one_length+(one_length-tile.image.getHeight())/2.0),
 						    null);
-				img2=null;
-				
-				x++;
-				if(x>=per_side)
-					{
-					x=0;
-					++y;
 					}
 				}
+			finally
+				{
+				executor.shutdownNow();
+				}
 			g.dispose();
 			LOG.info("Saving");
 			ImageIO.write(img, "JPG", outFile);
@@ -3,11 +3,31 @@ package sandbox;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.Invocable;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -27,27 +47,97 @@ public class NashornServer extends AbstractApplication {
 	private static Logger LOG=Logger.getLogger("nashornserver");
 	
 	
+	/**
+	 * The script is compiled once, and compiled again only when the
+	 * modification time of the file changes. Each thread of the server
+	 * evaluates the compiled script in its own bindings (its own javascript
+	 * global), so the engine is shared but the script's state is not.
+	 */
 	private static class Handler  extends AbstractHandler {
 		final File javascriptFile;
-		Handler(File javascriptFile) {
+		private final ScriptEngine scriptEngine;
+		/** current compiled script, null if the engine is not Compilable */
+		private CompiledScript compiledScript = null;
+		private long compiledLastModified = -1L;
+		/** incremented each time the script is reloaded */
+		private long scriptVersion = 0L;
+		private final ThreadLocal<ThreadScript> threadScripts = new ThreadLocal<>();
+		
+		/** the script evaluated in the bindings of one thread */
+		private static class ThreadScript {
+			long version=-1L;
+			Bindings bindings;
+		}
+		
+		Handler(File javascriptFile) throws ServletException {
 			this.javascriptFile=javascriptFile;
+			final ScriptEngineManager mgr=new  ScriptEngineManager();
+			this.scriptEngine= mgr.getEngineByExtension("js");
+			if(this.scriptEngine==null)
+	     		{
+				throw new ServletException("Cannot get a javascript engine");
+	     		}
 		}
-		@Override
-		public void handle(String target, Request baseRequest, final HttpServletRequest httpReq, final HttpServletResponse httpResp)
+		
+		/** (re)compiles the script if the file was modified, returns the version of the script */
+		private synchronized long compile() throws IOException, ScriptException {
+			final long lastModified = this.javascriptFile.lastModified();
+			if(lastModified == this.compiledLastModified) return this.scriptVersion;
+			LOG.info("compiling "+this.javascriptFile);
+			if(this.scriptEngine instanceof Compilable) {
+				FileReader scriptReader= null;
+				try {
+					scriptReader = new FileReader(this.javascriptFile);
+					this.compiledScript = Compilable.class.cast(this.scriptEngine).compile(scriptReader);
+				} finally {
+					IOUtils.close(scriptReader);
+				}
+			}
+			this.compiledLastModified = lastModified;
+			this.scriptVersion++;
+			return this.scriptVersion;
+		}
+		
+		/** returns the bindings of the current thread, where the current version of the script was evaluated */
+		private Bindings getBindings() throws IOException, ScriptException {
+			final long version = compile();
+			ThreadScript threadScript = this.threadScripts.get();
+			if(threadScript==null) {
+				threadScript = new ThreadScript();
+				this.threadScripts.set(threadScript);
+			}
+			if(threadScript.version != version) {
+				final CompiledScript compiled;
+				synchronized(this) {
+					compiled = this.compiledScript;
+				}
+				final Bindings bindings = this.scriptEngine.createBindings();
+				final ScriptContext ctx = new SimpleScriptContext();
+				ctx.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+				if(compiled!=null) {
+					compiled.eval(ctx);
+				} else {
+					FileReader scriptReader= null;
+					try {
+						scriptReader = new FileReader(this.javascriptFile);
+						this.scriptEngine.eval(scriptReader, ctx);
+					} finally {
+						IOUtils.close(scriptReader);
+					}
+				}
+				threadScript.bindings = bindings;
+				threadScript.version = version;
+			}
+			return threadScript.bindings;
+		}
+		
+		/** runs the function 'handle' of the script in the current thread */
+		void invokeScript(String target, Request baseRequest, final HttpServletRequest httpReq, final HttpServletResponse httpResp)
 				throws IOException, ServletException {
-				final ScriptEngineManager mgr=new  ScriptEngineManager();
-				final ScriptEngine scriptEngine= mgr.getEngineByExtension("js");
-				if(scriptEngine==null)
-		     		{
-					throw new ServletException("Cannot get a javascript engine");
-		     		}	
-				
-			FileReader scriptReader= null;
 			try {
-				 scriptReader = new FileReader(this.javascriptFile);
-				 scriptEngine.eval(scriptReader);
-				 scriptReader.close();
-				 Invocable.class.cast(scriptEngine).invokeFunction("handle",target,baseRequest,httpReq,httpResp);
+				 final Bindings bindings = getBindings();
+				 /* call the function 'handle' of the global object of this thread */
+				 Invocable.class.cast(this.scriptEngine).invokeMethod(bindings, "handle",target,baseRequest,httpReq,httpResp);
 			} catch(java.lang.NoSuchMethodException err) {
 				throw new ServletException("file \""+this.javascriptFile+"\" is missing a method handle(target,baseRequest,req,resp)",err);
 			}
@@ -55,11 +145,212 @@ public class NashornServer extends AbstractApplication {
 				throw e;
 			}  catch (final Exception e) {
 				throw new ServletException(e);
-			} finally {
-				IOUtils.close(scriptReader);
 			}
 		}
 		
+		@Override
+		public void handle(String target, Request baseRequest, final HttpServletRequest httpReq, final HttpServletResponse httpResp)
+				throws IOException, ServletException {
+			invokeScript(target, baseRequest, httpReq, httpResp);
+		}
+		
+	}
+	
+	/**
+	 * latency histogram with exponential buckets: bucket 'i' counts the
+	 * durations in [2^i,2^(i+1)[ microseconds.
+	 */
+	private static class LatencyHistogram {
+		private static final int NUM_BUCKETS = 40;
+		private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+		private final AtomicLong count = new AtomicLong(0L);
+		private final AtomicLong sumMicros = new AtomicLong(0L);
+		private final AtomicLong maxMicros = new AtomicLong(0L);
+		
+		void add(final long nanos) {
+			final long micros = Math.max(1L, nanos/1000L);
+			final int bucket = Math.min(NUM_BUCKETS-1, 63-Long.numberOfLeadingZeros(micros));
+			this.buckets.incrementAndGet(bucket);
+			this.count.incrementAndGet();
+			this.sumMicros.addAndGet(micros);
+			long max;
+			while((max=this.maxMicros.get()) < micros && !this.maxMicros.compareAndSet(max, micros)) {
+				/* retry */
+			}
+		}
+		
+		/** upper bound, in milliseconds, of the bucket containing the quantile 'q', at most the max */
+		private double quantile(final long snapshot[],final long total,final double q) {
+			if(total==0L) return 0.0;
+			final long rank = (long)Math.ceil(q*total);
+			long n=0L;
+			for(int i=0;i< snapshot.length;++i) {
+				n+=snapshot[i];
+				if(n>=rank) return Math.min(1L<<(i+1),this.maxMicros.get())/1000.0;
+			}
+			return this.maxMicros.get()/1000.0;
+		}
+		
+		void toJson(final StringBuilder sb) {
+			final long snapshot[] = new long[NUM_BUCKETS];
+			long total=0L;
+			for(int i=0;i< NUM_BUCKETS;++i) {
+				snapshot[i]=this.buckets.get(i);
+				total+=snapshot[i];
+			}
+			sb.append("{\"count\":").append(total);
+			sb.append(",\"mean_ms\":").append(total==0L?0.0:(this.sumMicros.get()/(double)total)/1000.0);
+			sb.append(",\"p50_ms\":").append(quantile(snapshot,total,0.50));
+			sb.append(",\"p90_ms\":").append(quantile(snapshot,total,0.90));
+			sb.append(",\"p99_ms\":").append(quantile(snapshot,total,0.99));
+			sb.append(",\"max_ms\":").append(this.maxMicros.get()/1000.0);
+			sb.append(",\"buckets\":[");
+			boolean first=true;
+			for(int i=0;i< NUM_BUCKETS;++i) {
+				if(snapshot[i]==0L) continue;
+				if(!first) sb.append(",");
+				first=false;
+				sb.append("{\"le_ms\":").append((1L<<(i+1))/1000.0).append(",\"count\":").append(snapshot[i]).append("}");
+			}
+			sb.append("]}");
+		}
+	}
+	
+	/** counters of one endpoint */
+	private static class EndpointStats {
+		final AtomicInteger inFlight = new AtomicInteger(0);
+		final AtomicLong errors = new AtomicLong(0L);
+		final AtomicLong rejected = new AtomicLong(0L);
+		/** from the arrival of the request to its completion, including the time in the queue */
+		final LatencyHistogram latency = new LatencyHistogram();
+		/** time spent in the queue */
+		final LatencyHistogram queueWait = new LatencyHistogram();
+		
+		void toJson(final StringBuilder sb) {
+			sb.append("{\"inFlight\":").append(this.inFlight.get());
+			sb.append(",\"errors\":").append(this.errors.get());
+			sb.append(",\"rejected\":").append(this.rejected.get());
+			sb.append(",\"latency\":");
+			this.latency.toJson(sb);
+			sb.append(",\"queueWait\":");
+			this.queueWait.toJson(sb);
+			sb.append("}");
+		}
+	}
+	
+	/**
+	 * Runs the script on a bounded pool of workers instead of the jetty
+	 * threads: the request is suspended (servlet async) and queued; when
+	 * the queue is full, the request is rejected with a 503. The statistics
+	 * of each endpoint are served as JSON on 'statsPath'.
+	 */
+	private static class WorkerPoolHandler extends AbstractHandler {
+		/** beyond this number of distinct endpoints, the targets are counted as 'OTHER_ENDPOINT' */
+		private static final int MAX_ENDPOINTS = 1000;
+		private static final String OTHER_ENDPOINT = "*";
+		private final Handler delegate;
+		private final ThreadPoolExecutor executor;
+		private final int queueCapacity;
+		private final String statsPath;
+		private final ConcurrentMap<String,EndpointStats> endpoints = new ConcurrentHashMap<>();
+		
+		WorkerPoolHandler(final Handler delegate,final int nWorkers,final int queueCapacity,final String statsPath) {
+			this.delegate = delegate;
+			this.queueCapacity = queueCapacity;
+			this.statsPath = statsPath;
+			final AtomicInteger nThreads = new AtomicInteger(0);
+			this.executor = new ThreadPoolExecutor(
+				nWorkers, nWorkers,
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity),
+				R -> {
+					final Thread t = new Thread(R,"nashorn-worker-"+nThreads.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				},
+				new ThreadPoolExecutor.AbortPolicy()
+				);
+		}
+		
+		private EndpointStats getStats(final String target) {
+			EndpointStats stats = this.endpoints.get(target);
+			if(stats!=null) return stats;
+			final String key = (this.endpoints.size()>=MAX_ENDPOINTS?OTHER_ENDPOINT:target);
+			return this.endpoints.computeIfAbsent(key, K->new EndpointStats());
+		}
+		
+		private void writeStats(final HttpServletResponse httpResp) throws IOException {
+			final StringBuilder sb = new StringBuilder();
+			sb.append("{\"workers\":").append(this.executor.getMaximumPoolSize());
+			sb.append(",\"activeWorkers\":").append(this.executor.getActiveCount());
+			sb.append(",\"queue\":{\"capacity\":").append(this.queueCapacity);
+			sb.append(",\"size\":").append(this.executor.getQueue().size()).append("}");
+			sb.append(",\"endpoints\":{");
+			boolean first=true;
+			for(final Map.Entry<String,EndpointStats> entry: new TreeMap<>(this.endpoints).entrySet()) {
+				if(!first) sb.append(",");
+				first=false;
+				sb.append("\"");
+				for(final char c:entry.getKey().toCharArray()) {
+					if(c=='"' || c=='\\') sb.append('\\');
+					if(c< 32) { sb.append(String.format("\\u%04x",(int)c)); continue;}
+					sb.append(c);
+				}
+				sb.append("\":");
+				entry.getValue().toJson(sb);
+			}
+			sb.append("}}");
+			httpResp.setContentType("application/json");
+			httpResp.setStatus(HttpServletResponse.SC_OK);
+			final PrintWriter out = httpResp.getWriter();
+			out.print(sb.toString());
+			out.flush();
+		}
+		
+		@Override
+		public void handle(final String target, final Request baseRequest, final HttpServletRequest httpReq, final HttpServletResponse httpResp)
+				throws IOException, ServletException {
+			if(target.equals(this.statsPath)) {
+				baseRequest.setHandled(true);
+				writeStats(httpResp);
+				return;
+			}
+			final long arrival = System.nanoTime();
+			final EndpointStats stats = getStats(target);
+			final AsyncContext async = httpReq.startAsync();
+			async.setTimeout(0L);
+			baseRequest.setHandled(true);
+			stats.inFlight.incrementAndGet();
+			try {
+				this.executor.execute(() -> {
+					stats.queueWait.add(System.nanoTime()-arrival);
+					try {
+						this.delegate.invokeScript(target, baseRequest, httpReq, httpResp);
+					} catch(final Exception err) {
+						stats.errors.incrementAndGet();
+						LOG.log(Level.SEVERE, "error in "+target, err);
+						try {
+							httpResp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+						} catch(final Exception err2) {
+							/* response already committed */
+						}
+					} finally {
+						stats.inFlight.decrementAndGet();
+						stats.latency.add(System.nanoTime()-arrival);
+						async.complete();
+					}
+				});
+			} catch(final RejectedExecutionException err) {
+				stats.inFlight.decrementAndGet();
+				stats.rejected.incrementAndGet();
+				httpResp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,"server busy");
+				async.complete();
+			}
+		}
+		
+		void shutdown() {
+			this.executor.shutdownNow();
+		}
 	}
 	
 	@Override
@@ -67,6 +358,9 @@ public class NashornServer extends AbstractApplication {
 		options.addOption(Option.builder("f").longOpt("script").hasArg(true).desc("javascript file.").build());
 		options.addOption(Option.builder("P").longOpt("port").hasArg(true).desc("port. Default:8080").build());
 		options.addOption(Option.builder("p").longOpt("path").hasArg(true).desc("servlet path . default: \"/\"").build());
+		options.addOption(Option.builder("w").longOpt("workers").hasArg(true).desc("number of workers running the script. Default: number of processors").build());
+		options.addOption(Option.builder("q").longOpt("queue").hasArg(true).desc("max number of requests waiting for a worker; beyond, the server answers 503. Default: 100").build());
+		options.addOption(Option.builder("s").longOpt("stats").hasArg(true).desc("path of the JSON statistics. Default: \"/_stats\"").build());
 		super.fillOptions(options);
 	}
 
@@ -83,6 +377,7 @@ public class NashornServer extends AbstractApplication {
 			return -1;
 			}
 		 final Server server = new Server(Integer.parseInt(cmd.getOptionValue("P","8080")));
+		 WorkerPoolHandler workerPool = null;
 		 try { 
 		     final HashSessionIdManager idmanager = new HashSessionIdManager();
 		     server.setSessionIdManager(idmanager);
@@ -93,7 +388,13 @@ public class NashornServer extends AbstractApplication {
 		     
 	        
 			 final Handler handler=new Handler(javascriptFile);
-			 sessions.setHandler(handler);
+			 workerPool = new WorkerPoolHandler(
+					handler,
+					Math.max(1,Integer.parseInt(cmd.getOptionValue("w",String.valueOf(Runtime.getRuntime().availableProcessors())))),
+					Math.max(1,Integer.parseInt(cmd.getOptionValue("q","100"))),
+					cmd.getOptionValue("s","/_stats")
+					);
+			 sessions.setHandler(workerPool);
 			
 			 final ContextHandler context = new ContextHandler();
 			 context.setContextPath(cmd.getOptionValue("p", "/"));
@@ -106,6 +407,8 @@ public class NashornServer extends AbstractApplication {
 		 } catch(final Exception err) {
 			 err.printStackTrace();
 			 return -1;
+		 } finally {
+			 if(workerPool!=null) workerPool.shutdown();
 		 }
 	}
 	public static void main(String[] args) {
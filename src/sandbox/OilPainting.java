@@ -17,12 +17,24 @@
 package sandbox;
 
 
-import java.awt.geom.Point2D;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 
 /**
@@ -33,84 +45,309 @@ public class OilPainting
 	{
 	private int radius=10;
 	private int intensityLevels=24;
+	/** number of threads of the fork-join pool */
+	private int nThreads=Runtime.getRuntime().availableProcessors();
+	/** maximum number of rows of a tile */
+	private int tileRows=64;
+	/** if greater than 0, stream the image by strips of 'stripRows' rows */
+	private int stripRows=0;
 	
 	
-	private BufferedImage run(BufferedImage sourceImage)
+	/**
+	 * half-widths of the circular mask: for a row at distance 'dy' from the center,
+	 * the pixels at distance dx<=mask[dy+radius] are in the circle (distance&lt;radius)
+	 */
+	private int[] circularMask()
+		{
+		int mask[]=new int[radius*2+1];
+		for(int dy=-radius;dy<=radius;++dy)
+			{
+			int dx=-1;
+			while((dx+1)*(dx+1)+dy*dy < radius*radius) ++dx;
+			mask[dy+radius]=dx;
+			}
+		return mask;
+		}
+	
+	/** intensity index of each pixel */
+	private int[] intensities(int pixels[])
+		{
+		int intensities[]=new int[pixels.length];
+		for(int i=0;i< pixels.length;++i)
+			{
+			int rgb = pixels[i];
+			int red = (rgb >> 16)&0xFF;
+			int green = (rgb >>8)&0xFF;
+			int blue = (rgb )&0xFF;
+			intensities[i] = (int)((((red+green+blue)/3.0)/256.0)*intensityLevels);
+			}
+		return intensities;
+		}
+	
+	/**
+	 * Filters the rows [rowStart,rowEnd[ of a buffer of 'width' x 'height' pixels
+	 * and stores them in 'output', starting at row 0.
+	 * For each pixel, the intensity histogram of the circular neighbourhood is
+	 * updated from the one of the previous pixel of the row: for each row of
+	 * the mask, the pixel leaving on the left is removed and the pixel entering
+	 * on the right is added, so the cost per pixel is O(radius).
+	 * When several intensities have the same count, the lowest one wins.
+	 */
+	private void filterRows(
+		final int pixels[],
+		final int intensities[],
+		final int mask[],
+		final int width,
+		final int height,
+		final int rowStart,
+		final int rowEnd,
+		final int output[]
+		)
 		{
-		BufferedImage dest=new BufferedImage(
-			sourceImage.getWidth(),
-			sourceImage.getHeight(),
-			sourceImage.getType()
-			);
-		
 		int averageR[] = new int[intensityLevels];
 		int averageG[]=new int[intensityLevels];
 		int averageB[]=new int[intensityLevels];
 		int intensityCount[]=new int[intensityLevels];
 		
-		for(int x=0;x< sourceImage.getWidth();++x)
+		for(int y=rowStart;y< rowEnd;++y)
 			{
-			int left = Math.max(0,x-radius);
-			int right = Math.min(x+radius,dest.getWidth()-1);
-			for(int y=0;y< sourceImage.getHeight();++y)
+			Arrays.fill(averageR,0);
+			Arrays.fill(averageG,0);
+			Arrays.fill(averageB,0);
+			Arrays.fill(intensityCount,0);
+			
+			int top = Math.max(0,y-radius);
+			int bottom = Math.min(y+radius,height-1);
+			
+			/* initial window, centered on x=0 */
+			for(int j=top;j<=bottom;++j)
 				{
-				
-				int top = Math.max(0,y-radius);
-				int bottom = Math.min(y+radius,dest.getHeight()-1);
-				
-				Arrays.fill(averageR,0);
-				Arrays.fill(averageG,0);
-				Arrays.fill(averageB,0);
-				Arrays.fill(intensityCount,0);
-				int maxIndex=-1;
-				
-				for(int j=top;j<=bottom;++j)
+				int right=Math.min(mask[j-y+radius],width-1);
+				for(int i=0;i<=right;++i)
+					{
+					int index=j*width+i;
+					int rgb=pixels[index];
+					int k=intensities[index];
+					intensityCount[k]++;
+					averageR[k] += (rgb >> 16)&0xFF;
+					averageG[k] += (rgb >>8)&0xFF;
+					averageB[k] += (rgb )&0xFF;
+					}
+				}
+			
+			for(int x=0;x< width;++x)
+				{
+				if(x>0)
 					{
-					for(int i=left;i<=right;++i)
+					/* slide the window from x-1 to x */
+					for(int j=top;j<=bottom;++j)
 						{
-						if(!inRange(x,y,i, j)) continue;
-						
-						int rgb = sourceImage.getRGB(i,j);
-						
-						int red = (rgb >> 16)&0xFF;
-						int green = (rgb >>8)&0xFF;
-						int blue = (rgb )&0xFF;
-						int intensityIndex = (int)((((red+green+blue)/3.0)/256.0)*intensityLevels);
-						
-						intensityCount[intensityIndex]++;
-						averageR[intensityIndex] += red;
-						averageG[intensityIndex] += green;
-						averageB[intensityIndex] += blue;
-						
-						if( maxIndex==-1 ||
-							intensityCount[maxIndex]< intensityCount[intensityIndex]
-							)
+						int half=mask[j-y+radius];
+						if(half<0) continue;
+						int leaving=x-1-half;
+						if(leaving>=0)
 							{
-							maxIndex = intensityIndex;
+							int index=j*width+leaving;
+							int rgb=pixels[index];
+							int k=intensities[index];
+							intensityCount[k]--;
+							averageR[k] -= (rgb >> 16)&0xFF;
+							averageG[k] -= (rgb >>8)&0xFF;
+							averageB[k] -= (rgb )&0xFF;
+							}
+						int entering=x+half;
+						if(entering< width)
+							{
+							int index=j*width+entering;
+							int rgb=pixels[index];
+							int k=intensities[index];
+							intensityCount[k]++;
+							averageR[k] += (rgb >> 16)&0xFF;
+							averageG[k] += (rgb >>8)&0xFF;
+							averageB[k] += (rgb )&0xFF;
 							}
 						}
 					}
 				
+				int maxIndex=0;
+				for(int k=1;k< intensityLevels;++k)
+					{
+					if(intensityCount[maxIndex]< intensityCount[k]) maxIndex=k;
+					}
+				
 				int curMax = intensityCount[maxIndex];
 				int r = averageR[maxIndex] / curMax;
 				int g = averageG[maxIndex] / curMax;
 				int b = averageB[maxIndex] / curMax;
 				
-				int rgb=((r << 16) | ((g << 8) | b));
-				dest.setRGB(x,y,rgb);
+				output[(y-rowStart)*width+x]=((r << 16) | ((g << 8) | b));
 				}
 			}
+		}
+	
+	/**
+	 * A band of rows of the buffer. Its halo (the 'radius' rows above and below)
+	 * is read from the shared source buffer, so bands are independent and are
+	 * split until they contain at most 'tileRows' rows.
+	 */
+	private class TileTask extends RecursiveAction
+		{
+		private static final long serialVersionUID = 1L;
+		private final int pixels[];
+		private final int intensities[];
+		private final int mask[];
+		private final int width;
+		private final int height;
+		private final int rowStart;
+		private final int rowEnd;
+		private final int output[];
+		private final int outputRow;
+		
+		TileTask(int pixels[],int intensities[],int mask[],int width,int height,
+			int rowStart,int rowEnd,int output[],int outputRow)
+			{
+			this.pixels=pixels;
+			this.intensities=intensities;
+			this.mask=mask;
+			this.width=width;
+			this.height=height;
+			this.rowStart=rowStart;
+			this.rowEnd=rowEnd;
+			this.output=output;
+			this.outputRow=outputRow;
+			}
 		
+		@Override
+		protected void compute()
+			{
+			if(rowEnd-rowStart<=tileRows)
+				{
+				int tile[]=new int[(rowEnd-rowStart)*width];
+				filterRows(pixels, intensities, mask, width, height, rowStart, rowEnd, tile);
+				System.arraycopy(tile, 0, output, (rowStart-outputRow)*width, tile.length);
+				return;
+				}
+			int mid=rowStart+(rowEnd-rowStart)/2;
+			invokeAll(
+				new TileTask(pixels, intensities, mask, width, height, rowStart, mid, output, outputRow),
+				new TileTask(pixels, intensities, mask, width, height, mid, rowEnd, output, outputRow)
+				);
+			}
+		}
+	
+	/** filters the rows [rowStart,rowEnd[ of the buffer using the fork-join pool */
+	private int[] filter(ForkJoinPool pool,int pixels[],int width,int height,int rowStart,int rowEnd)
+		{
+		int output[]=new int[(rowEnd-rowStart)*width];
+		pool.invoke(new TileTask(
+			pixels, intensities(pixels), circularMask(),
+			width, height, rowStart, rowEnd, output, rowStart
+			));
+		return output;
+		}
+	
+	private BufferedImage run(BufferedImage sourceImage)
+		{
+		if(radius<=0) throw new IllegalArgumentException("radius must be greater than 0");
+		final int width=sourceImage.getWidth();
+		final int height=sourceImage.getHeight();
+		BufferedImage dest=new BufferedImage(
+			width,
+			height,
+			sourceImage.getType()
+			);
 		
+		int pixels[]=sourceImage.getRGB(0, 0, width, height, null, 0, width);
+		ForkJoinPool pool=new ForkJoinPool(nThreads);
+		try
+			{
+			int output[]=filter(pool, pixels, width, height, 0, height);
+			dest.setRGB(0, 0, width, height, output, 0, width);
+			}
+		finally
+			{
+			pool.shutdown();
+			}
 		return dest;
 		}
 	
-	private boolean inRange(int cx,int cy,int i,int j)
+	/**
+	 * Streaming mode for images that don't fit in memory: the source is read
+	 * by strips of 'stripRows' rows (plus a halo of 'radius' rows) using
+	 * ImageReadParam.setSourceRegion, and each filtered strip is written in
+	 * place with ImageWriter.replacePixels. Only the writers able to write an
+	 * empty image and to replace its pixels (e.g. TIFF) can be used.
+	 */
+	private void runStreaming(File inFile,File outFile,String format)
+		throws IOException
 		{
-		double d;
-		//d= java.awt.geom.Line2D.ptLineDist(cx, cy, cx-radius, cy-radius, i, j);
-		d=Point2D.distance(i, j,cx,cy);
-		return d<radius;
+		if(radius<=0) throw new IllegalArgumentException("radius must be greater than 0");
+		Iterator<ImageWriter> writers=ImageIO.getImageWritersByFormatName(format);
+		if(!writers.hasNext()) throw new IOException("No image writer for "+format);
+		ImageWriter writer=writers.next();
+		ImageInputStream in=null;
+		ImageOutputStream out=null;
+		ImageReader reader=null;
+		ForkJoinPool pool=new ForkJoinPool(nThreads);
+		try
+			{
+			in=ImageIO.createImageInputStream(inFile);
+			if(in==null) throw new IOException("Cannot open "+inFile);
+			Iterator<ImageReader> readers=ImageIO.getImageReaders(in);
+			if(!readers.hasNext()) throw new IOException("No image reader for "+inFile);
+			reader=readers.next();
+			reader.setInput(in, true, true);
+			final int width=reader.getWidth(0);
+			final int height=reader.getHeight(0);
+			
+			if(outFile.exists() && !outFile.delete())
+				{
+				throw new IOException("Cannot delete "+outFile);
+				}
+			out=ImageIO.createImageOutputStream(outFile);
+			writer.setOutput(out);
+			if(!writer.canWriteEmpty())
+				{
+				throw new IOException("Cannot write "+format+" images by strips. Use a TIFF output.");
+				}
+			writer.prepareWriteEmpty(null,
+				ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB),
+				width, height, null, null, writer.getDefaultWriteParam());
+			writer.endWriteEmpty();
+			if(!writer.canReplacePixels(0))
+				{
+				throw new IOException("Cannot replace the pixels of a "+format+" image.");
+				}
+			
+			for(int y=0;y< height;y+=stripRows)
+				{
+				int end=Math.min(height, y+stripRows);
+				int haloTop=Math.max(0, y-radius);
+				int haloBottom=Math.min(height, end+radius);
+				ImageReadParam readParam=reader.getDefaultReadParam();
+				readParam.setSourceRegion(new Rectangle(0, haloTop, width, haloBottom-haloTop));
+				BufferedImage strip=reader.read(0, readParam);
+				int pixels[]=strip.getRGB(0, 0, width, haloBottom-haloTop, null, 0, width);
+				
+				int output[]=filter(pool, pixels, width, haloBottom-haloTop, y-haloTop, end-haloTop);
+				BufferedImage dest=new BufferedImage(width, end-y, BufferedImage.TYPE_INT_RGB);
+				dest.setRGB(0, 0, width, end-y, output, 0, width);
+				
+				writer.prepareReplacePixels(0, new Rectangle(0, y, width, end-y));
+				ImageWriteParam writeParam=writer.getDefaultWriteParam();
+				writeParam.setDestinationOffset(new Point(0, y));
+				writer.replacePixels(dest, writeParam);
+				writer.endReplacePixels();
+				}
+			}
+		finally
+			{
+			pool.shutdown();
+			if(reader!=null) reader.dispose();
+			writer.dispose();
+			if(in!=null) in.close();
+			if(out!=null) out.close();
+			}
 		}
 	
 	public static void main(String[] args)
@@ -127,6 +364,10 @@ public class OilPainting
 					System.out.println(" -o <fileout> ");
 					System.out.println(" -r  <radius> = "+app.radius);
 					System.out.println(" -L  <intensity-level> = "+app.intensityLevels);
+					System.out.println(" -t  <threads> = "+app.nThreads);
+					System.out.println(" -T  <rows per tile> = "+app.tileRows);
+					System.out.println(" -S  <rows per strip> stream the image by strips (local file in, TIFF out)");
+					System.out.println("     -S and the .tif/.tiff output need a JDK with a TIFF image writer (9+).");
 					return;
 					}
 				else if(args[optind].equals("-o"))
@@ -141,6 +382,18 @@ public class OilPainting
 					{
 					app.intensityLevels = Integer.parseInt(args[++optind]);
 					}
+				else if(args[optind].equals("-t"))
+					{
+					app.nThreads = Math.max(1,Integer.parseInt(args[++optind]));
+					}
+				else if(args[optind].equals("-T"))
+					{
+					app.tileRows = Math.max(1,Integer.parseInt(args[++optind]));
+					}
+				else if(args[optind].equals("-S"))
+					{
+					app.stripRows = Integer.parseInt(args[++optind]);
+					}
 				else if(args[optind].equals("--"))
 					{
 					optind++;
@@ -168,7 +421,36 @@ public class OilPainting
 				return;
 				}
 			
+			String format="jpg";
+			String fname=outFile.getName().toLowerCase();
+			if(fname.endsWith(".jpg") || fname.endsWith(".jpeg"))
+				{
+				format="jpg";
+				}
+			else if(fname.endsWith(".png"))
+				{
+				format="png";
+				}
+			else if(fname.endsWith(".tif") || fname.endsWith(".tiff"))
+				{
+				format="tiff";
+				}
+			else
+				{
+				System.err.println("Bad image format: "+fname);
+				return;
+				}
+			if(!ImageIO.getImageWritersByFormatName(format).hasNext())
+				{
+				System.err.println("No image writer for "+format+" in this JDK (TIFF needs java 9+): "+fname);
+				return;
+				}
 			String filename=args[optind];
+			if(app.stripRows>0)
+				{
+				app.runStreaming(new File(filename), outFile, format);
+				return;
+				}
 			BufferedImage sourceImage=null;
 			if( filename.startsWith("http://") ||
 				filename.startsWith("https://") ||
@@ -182,23 +464,17 @@ public class OilPainting
 				}
 			
 			
-			String format="jpg";
-			String fname=outFile.getName().toLowerCase();
-			if(fname.endsWith(".jpg") || fname.endsWith(".jpeg"))
-				{
-				format="jpg";
-				}
-			else if(fname.endsWith(".png"))
+			if(sourceImage==null)
 				{
-				format="png";
+				System.err.println("Cannot read "+filename);
+				return;
 				}
-			else
+			BufferedImage img = app.run(sourceImage);
+			if(!ImageIO.write(img, format, outFile))
 				{
-				System.err.println("Bad image format: "+fname);
+				System.err.println("Cannot write "+format+" image "+outFile);
 				return;
 				}
-			BufferedImage img = app.run(sourceImage);
-			ImageIO.write(img, format, outFile);
 			}
 		catch (Exception e)
 			{
@@ -64,8 +64,13 @@ public class Pivot
 	    new AggregateMax(),
 	    new AggregateDistinct(),
 	    new AggregateDistinctCount(),
-	    new AggregateSum()
+	    new AggregateSum(),
+	    new AggregateQuantile("p50",0.50),
+	    new AggregateQuantile("p90",0.90),
+	    new AggregateQuantile("p99",0.99),
+	    new AggregateHistogram()
 	    };
+	private int histogramBins=10;
 	private Aggregate selectedAggregate=aggregates[0];
 	
 	private static interface Aggregate
@@ -305,6 +310,341 @@ public class Pivot
 		}
 	
 	
+	/**
+	 * A merging t-digest: a compact, mergeable summary of a distribution of doubles.
+	 * Values are buffered and periodically merged into at most 'compression'
+	 * centroids; small centroids are kept near the tails so extreme
+	 * quantiles remain accurate.
+	 */
+	private static class QuantileSketch
+		{
+		private final double compression;
+		private double means[];
+		private double weights[];
+		private int nCentroids=0;
+		private double bufMeans[];
+		private double bufWeights[];
+		private int nBuffer=0;
+		private double total=0;
+		private double min=Double.POSITIVE_INFINITY;
+		private double max=Double.NEGATIVE_INFINITY;
+		
+		QuantileSketch(double compression)
+			{
+			this.compression=compression;
+			int capacity=(int)Math.ceil(compression)*2+10;
+			this.means=new double[capacity];
+			this.weights=new double[capacity];
+			this.bufMeans=new double[capacity*5];
+			this.bufWeights=new double[capacity*5];
+			}
+		
+		public void clear()
+			{
+			this.nCentroids=0;
+			this.nBuffer=0;
+			this.total=0;
+			this.min=Double.POSITIVE_INFINITY;
+			this.max=Double.NEGATIVE_INFINITY;
+			}
+		
+		public boolean isEmpty()
+			{
+			return this.total==0;
+			}
+		
+		public double getMin()
+			{
+			return this.min;
+			}
+		
+		public double getMax()
+			{
+			return this.max;
+			}
+		
+		public double getCount()
+			{
+			return this.total;
+			}
+		
+		public void add(double x)
+			{
+			add(x,1.0);
+			}
+		
+		private void add(double x,double w)
+			{
+			if(Double.isNaN(x)) return;
+			if(this.nBuffer==this.bufMeans.length) compress();
+			this.bufMeans[this.nBuffer]=x;
+			this.bufWeights[this.nBuffer]=w;
+			this.nBuffer++;
+			this.total+=w;
+			this.min=Math.min(this.min,x);
+			this.max=Math.max(this.max,x);
+			}
+		
+		/** merges another sketch into this one: its centroids, its min and its max */
+		public void merge(QuantileSketch other)
+			{
+			if(other==this || other.isEmpty()) return;
+			other.compress();
+			for(int i=0;i< other.nCentroids;++i)
+				{
+				add(other.means[i],other.weights[i]);
+				}
+			this.min=Math.min(this.min,other.min);
+			this.max=Math.max(this.max,other.max);
+			compress();
+			}
+		
+		private double k(double q)
+			{
+			return this.compression/(2.0*Math.PI)*Math.asin(2.0*q-1.0);
+			}
+		
+		private double kInverse(double k)
+			{
+			return (Math.sin(k*2.0*Math.PI/this.compression)+1.0)/2.0;
+			}
+		
+		private void compress()
+			{
+			if(this.nBuffer==0) return;
+			int n=this.nCentroids+this.nBuffer;
+			double allMeans[]=new double[n];
+			double allWeights[]=new double[n];
+			System.arraycopy(this.means, 0, allMeans, 0, this.nCentroids);
+			System.arraycopy(this.weights, 0, allWeights, 0, this.nCentroids);
+			System.arraycopy(this.bufMeans, 0, allMeans, this.nCentroids, this.nBuffer);
+			System.arraycopy(this.bufWeights, 0, allWeights, this.nCentroids, this.nBuffer);
+			Integer order[]=new Integer[n];
+			for(int i=0;i< n;++i) order[i]=i;
+			final double sortMeans[]=allMeans;
+			java.util.Arrays.sort(order,new Comparator<Integer>()
+				{
+				@Override
+				public int compare(Integer o1, Integer o2)
+					{
+					return Double.compare(sortMeans[o1], sortMeans[o2]);
+					}
+				});
+			
+			double sortedMeans[]=new double[n];
+			double sortedWeights[]=new double[n];
+			for(int i=0;i< n;++i)
+				{
+				sortedMeans[i]=allMeans[order[i]];
+				sortedWeights[i]=allWeights[order[i]];
+				}
+			this.nBuffer=0;
+			double step=1.0;
+			mergeSorted(sortedMeans,sortedWeights,n,step);
+			/* the greedy pass alone doesn't bound the number of centroids (e.g. sorted
+			 * input or many duplicates): merge the centroids again with a larger step */
+			while(this.nCentroids> this.compression)
+				{
+				step*=1.25;
+				n=this.nCentroids;
+				mergeSorted(
+					java.util.Arrays.copyOf(this.means, n),
+					java.util.Arrays.copyOf(this.weights, n),
+					n,step);
+				}
+			}
+		
+		/** replaces the centroids by the sorted values, merged while they span less than 'step' in k */
+		private void mergeSorted(double sortedMeans[],double sortedWeights[],int n,double step)
+			{
+			this.nCentroids=0;
+			double weightSoFar=0;
+			double qLimit=kInverse(k(0)+step)*this.total;
+			double curMean=sortedMeans[0];
+			double curWeight=sortedWeights[0];
+			for(int i=1;i< n;++i)
+				{
+				double m=sortedMeans[i];
+				double w=sortedWeights[i];
+				if(weightSoFar+curWeight+w <= qLimit)
+					{
+					curWeight+=w;
+					curMean+=(m-curMean)*w/curWeight;
+					}
+				else
+					{
+					appendCentroid(curMean,curWeight);
+					weightSoFar+=curWeight;
+					qLimit=kInverse(Math.min(k(weightSoFar/this.total)+step,k(1)))*this.total;
+					curMean=m;
+					curWeight=w;
+					}
+				}
+			appendCentroid(curMean,curWeight);
+			}
+		
+		private void appendCentroid(double m,double w)
+			{
+			if(this.nCentroids==this.means.length)
+				{
+				this.means=java.util.Arrays.copyOf(this.means, this.nCentroids*2);
+				this.weights=java.util.Arrays.copyOf(this.weights, this.nCentroids*2);
+				}
+			this.means[this.nCentroids]=m;
+			this.weights[this.nCentroids]=w;
+			this.nCentroids++;
+			}
+		
+		/** estimate the value at quantile q (0&lt;=q&lt;=1) */
+		public double quantile(double q)
+			{
+			compress();
+			if(this.nCentroids==0) return Double.NaN;
+			if(this.nCentroids==1) return this.means[0];
+			double target=q*this.total;
+			if(target< this.weights[0]/2.0)
+				{
+				return this.min+(this.means[0]-this.min)*target/(this.weights[0]/2.0);
+				}
+			double cumul=this.weights[0]/2.0;
+			for(int i=0;i+1< this.nCentroids;++i)
+				{
+				double gap=(this.weights[i]+this.weights[i+1])/2.0;
+				if(target< cumul+gap)
+					{
+					return this.means[i]+(this.means[i+1]-this.means[i])*(target-cumul)/gap;
+					}
+				cumul+=gap;
+				}
+			double last=this.weights[this.nCentroids-1]/2.0;
+			double m=this.means[this.nCentroids-1];
+			return m+(this.max-m)*Math.min(1.0,(target-cumul)/last);
+			}
+		
+		/** estimate the fraction of values lower or equal than x */
+		public double cdf(double x)
+			{
+			compress();
+			if(this.nCentroids==0) return Double.NaN;
+			if(x< this.min) return 0;
+			if(x>=this.max) return 1;
+			if(x< this.means[0])
+				{
+				return (this.weights[0]/2.0)*(x-this.min)/(this.means[0]-this.min)/this.total;
+				}
+			double cumul=this.weights[0]/2.0;
+			for(int i=0;i+1< this.nCentroids;++i)
+				{
+				double gap=(this.weights[i]+this.weights[i+1])/2.0;
+				if(x< this.means[i+1])
+					{
+					double dx=this.means[i+1]-this.means[i];
+					return (cumul+(dx==0?0:gap*(x-this.means[i])/dx))/this.total;
+					}
+				cumul+=gap;
+				}
+			double m=this.means[this.nCentroids-1];
+			double last=this.weights[this.nCentroids-1]/2.0;
+			return (cumul+last*(x-m)/(this.max-m))/this.total;
+			}
+		}
+	
+	private static class AggregateQuantile implements Aggregate
+		{
+		private String id;
+		private double q;
+		private QuantileSketch sketch=new QuantileSketch(100);
+		AggregateQuantile(String id,double q)
+			{
+			this.id=id;
+			this.q=q;
+			}
+		@Override
+		public void reset()
+			{
+			this.sketch.clear();
+			}
+	
+		@Override
+		public String getId()
+			{
+			return this.id;
+			}
+	
+		@Override
+		public String getDescription()
+			{
+			return "approximate "+(int)Math.round(q*100)+"th percentile of numeric data (t-digest)";
+			}
+	
+		@Override
+		public void add(Object o)
+			{
+		    if(o==null || !(o instanceof Number)) return;
+		    this.sketch.add(Number.class.cast(o).doubleValue());
+			}
+	
+		@Override
+		public void write(XMLStreamWriter w) throws XMLStreamException
+			{
+			if(this.sketch.isEmpty()) return;
+			w.writeCharacters(String.valueOf(this.sketch.quantile(this.q)));	
+			}
+		}
+	
+	private class AggregateHistogram implements Aggregate
+		{
+		private QuantileSketch sketch=new QuantileSketch(100);
+		@Override
+		public void reset()
+			{
+			this.sketch.clear();
+			}
+	
+		@Override
+		public String getId()
+			{
+			return "histogram";
+			}
+	
+		@Override
+		public String getDescription()
+			{
+			return "approximate histogram of numeric data (t-digest, see -bins)";
+			}
+	
+		@Override
+		public void add(Object o)
+			{
+		    if(o==null || !(o instanceof Number)) return;
+		    this.sketch.add(Number.class.cast(o).doubleValue());
+			}
+	
+		@Override
+		public void write(XMLStreamWriter w) throws XMLStreamException
+			{
+			if(this.sketch.isEmpty()) return;
+			double min=this.sketch.getMin();
+			double max=this.sketch.getMax();
+			int nBins=(min==max?1:histogramBins);
+			double step=(max-min)/nBins;
+			double prev=0;
+			w.writeStartElement("ul");
+			for(int i=0;i< nBins;++i)
+				{
+				double start=min+i*step;
+				double end=(i+1==nBins?max:min+(i+1)*step);
+				double cdf=(i+1==nBins?1.0:this.sketch.cdf(end));
+				long count=Math.round((cdf-prev)*this.sketch.getCount());
+				prev=cdf;
+				w.writeStartElement("li");
+				w.writeCharacters("["+start+"-"+end+(i+1==nBins?"]":"[")+" : "+count);
+				w.writeEndElement();
+				}
+			w.writeEndElement();
+			}
+		}
+	
 	private static interface StringParser
 		{
 		public Object parse(String s);
@@ -893,6 +1233,7 @@ public class Pivot
 	                	{
 	                	System.out.println("    "+a.getId()+" "+a.getDescription());
 	                	}
+	                System.out.println(" -bins <int> number of bins for the histogram aggregate. default:"+pivot.histogramBins);
 	                System.out.println(" -p <regex> pattern used to break the input into tokens default:TAB");
 	                System.out.println(" -i case insensitive");
 	                System.out.println(" -t trim each column");
@@ -942,6 +1283,11 @@ public class Pivot
 	            		return;
 	            		}
 	                }
+	            else if(args[optind].equals("-bins"))
+	                {
+	                pivot.histogramBins= Integer.parseInt(args[++optind]);
+	                if(pivot.histogramBins<=0) throw new IllegalArgumentException("bad number of bins");
+	                }
 	            else if(args[optind].equals("-p"))
 	                {
 	                pivot.delimiter= Pattern.compile(args[++optind]);
@@ -14,13 +14,23 @@
  */
 package sandbox;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -37,82 +47,176 @@ import javax.xml.stream.XMLStreamWriter;
 public class RasterToOpenRaster
 	{
 	private String format="JPG";
-	private BufferedImage srcImage;
+	/** the layers, from the bottom to the top */
+	private List<String> sources=new ArrayList<String>();
 	private double ratio=1.0;
     private File fileout=null;
+    private int nThreads=Runtime.getRuntime().availableProcessors();
 	
-    private void run() throws XMLStreamException,IOException
+    /** an encoded layer */
+    private static class Layer
     	{
-    	BufferedImage image=srcImage;
-    	if(ratio>0 && ratio!=1)
-    		{
-    		AffineTransform tx = AffineTransform.getScaleInstance(ratio, ratio);
-    		AffineTransformOp op = new AffineTransformOp(tx, AffineTransformOp.TYPE_BICUBIC);
-    		image = op.filter(image, null);
-    		}
-    	FileOutputStream fout=new FileOutputStream(fileout);
-    	ZipOutputStream zout=new ZipOutputStream(fout);
-    	
-    	//mime
-    	ZipEntry entry=new ZipEntry("mimetype");
-    	zout.putNextEntry(entry);
-    	zout.write(new String("image/openraster\n").getBytes());
-    	zout.closeEntry();
-    	
-    	entry=new ZipEntry("data/layer001."+(format.equals("PNG")?"png":"jpg"));
-    	zout.putNextEntry(entry);
-    	ImageIO.write(image,format, zout);
-    	zout.closeEntry();
-    	
-    	
-    	//thumb
-    	double zoom=1;
-    	if(srcImage.getWidth()>srcImage.getHeight())
+    	String source;
+    	int width;
+    	int height;
+    	byte data[];
+    	}
+    
+    /** decodes, scales and encodes one layer in memory */
+    private class LayerEncoder implements Callable<Layer>
+    	{
+    	private final String source;
+    	LayerEncoder(String source)
     		{
-    		zoom= 64.0/srcImage.getWidth();
+    		this.source=source;
     		}
-    	else
+    	@Override
+    	public Layer call() throws Exception
     		{
-    		zoom= 64.0/srcImage.getHeight();
+    		BufferedImage image=ThumbnailCache.getInstance().read(source);
+    		if(image==null) throw new IOException("Cannot read "+source);
+        	if(ratio>0 && ratio!=1)
+        		{
+        		AffineTransform tx = AffineTransform.getScaleInstance(ratio, ratio);
+        		AffineTransformOp op = new AffineTransformOp(tx, AffineTransformOp.TYPE_BICUBIC);
+        		image = op.filter(image, null);
+        		}
+        	Layer layer=new Layer();
+        	layer.source=source;
+        	layer.width=image.getWidth();
+        	layer.height=image.getHeight();
+        	ByteArrayOutputStream baos=new ByteArrayOutputStream();
+        	ImageIO.write(image,format, baos);
+        	baos.close();
+        	layer.data=baos.toByteArray();
+    		return layer;
     		}
-    	AffineTransform tx = AffineTransform.getScaleInstance(zoom,zoom);
-		AffineTransformOp op = new AffineTransformOp(tx, AffineTransformOp.TYPE_BICUBIC);
-		entry=new ZipEntry("Thumbnails/thumbnail.png");
-		zout.putNextEntry(entry);
-    	ImageIO.write(op.filter(srcImage, null),"PNG", zout);
-    	zout.closeEntry();
-    	
-    	entry=new ZipEntry("stack.xml");
+    	}
+    
+    private String layerPath(int index)
+    	{
+    	return String.format("data/layer%03d.",index+1)+(format.equals("PNG")?"png":"jpg");
+    	}
+    
+    /** PNG and JPG are already compressed: the entry is STORED, not deflated again */
+    private static void putStored(ZipOutputStream zout,String name,byte data[])
+    	throws IOException
+    	{
+    	ZipEntry entry=new ZipEntry(name);
+    	entry.setMethod(ZipEntry.STORED);
+    	entry.setSize(data.length);
+    	entry.setCompressedSize(data.length);
+    	CRC32 crc=new CRC32();
+    	crc.update(data);
+    	entry.setCrc(crc.getValue());
     	zout.putNextEntry(entry);
-    	XMLOutputFactory xmlfactory= XMLOutputFactory.newInstance();
-    	XMLStreamWriter w= xmlfactory.createXMLStreamWriter(zout,"UTF-8");
-    	w.writeStartDocument("UTF-8","1.0");
-    	w.writeStartElement("image");
-    	w.writeAttribute("w",String.valueOf( image.getWidth()));
-    	w.writeAttribute("h",String.valueOf( image.getHeight()));
-    	w.writeStartElement("stack");
-    	
-	    	w.writeEmptyElement("layer");
-	    	w.writeAttribute("src","data/layer001."+(format.equals("PNG")?"png":"jpg"));
-	    	w.writeAttribute("x","0");
-	    	w.writeAttribute("y","0");
-	    	w.writeAttribute("opacity","0.4");
-	    	w.writeAttribute("visibility","visible");
-
-    	
-    	w.writeEndElement();//stack
-    	w.writeEndElement();//image
-    	w.writeEndDocument();
-    	w.flush();
+    	zout.write(data);
     	zout.closeEntry();
-    	
-    	
-    	
-    	zout.finish();
-    	zout.flush();
-    	fout.flush();
-    	fout.close();
-    	
+    	}
+    
+    private void run() throws XMLStreamException,IOException,InterruptedException
+    	{
+    	/* encode the layers in parallel, at most 2*nThreads layers are pending; the entries are written in order */
+    	ExecutorService executor=Executors.newFixedThreadPool(nThreads);
+    	List<Layer> layers=new ArrayList<Layer>(this.sources.size());
+    	FileOutputStream fout=new FileOutputStream(fileout);
+    	try
+	    	{
+	    	final int maxPending=2*nThreads;
+	    	List<Future<Layer>> futures=new ArrayList<Future<Layer>>(this.sources.size());
+	    	
+	    	ZipOutputStream zout=new ZipOutputStream(fout);
+	    	
+	    	//mime, must be the first entry and uncompressed
+	    	putStored(zout,"mimetype",new String("image/openraster\n").getBytes());
+	    	
+	    	int width=0;
+	    	int height=0;
+	    	for(int i=0;i< this.sources.size();++i)
+	    		{
+	    		while(futures.size()< this.sources.size() && futures.size()-i< maxPending)
+	    			{
+	    			futures.add(executor.submit(new LayerEncoder(this.sources.get(futures.size()))));
+	    			}
+	    		Layer layer;
+	    		try
+	    			{
+	    			layer=futures.get(i).get();
+	    			futures.set(i, null);
+	    			}
+	    		catch(ExecutionException err)
+	    			{
+	    			throw new IOException(err.getCause());
+	    			}
+	    		putStored(zout,layerPath(i),layer.data);
+	    		/* release the encoded image */
+	    		layer.data=null;
+	    		layers.add(layer);
+	    		width=Math.max(width, layer.width);
+	    		height=Math.max(height, layer.height);
+	    		}
+	    	
+	    	
+	    	//thumb: the layers, downscaled by the same factor, drawn from bottom to top
+	    	double zoom=Math.min(1.0, 64.0/Math.max(width, height));
+	    	BufferedImage thumb=new BufferedImage(
+	    		Math.max(1,(int)(width*zoom)),
+	    		Math.max(1,(int)(height*zoom)),
+	    		BufferedImage.TYPE_INT_ARGB
+	    		);
+	    	Graphics2D g=thumb.createGraphics();
+	    	g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+	    	for(Layer layer:layers)
+	    		{
+	    		int w=Math.max(1,(int)Math.ceil(layer.width*zoom));
+	    		int h=Math.max(1,(int)Math.ceil(layer.height*zoom));
+	    		BufferedImage img=ThumbnailCache.getInstance().fit(layer.source, w, h);
+	    		if(img!=null) g.drawImage(img, 0, 0, w, h, null);
+	    		}
+	    	g.dispose();
+	    	ByteArrayOutputStream baos=new ByteArrayOutputStream();
+	    	ImageIO.write(thumb,"PNG", baos);
+	    	putStored(zout,"Thumbnails/thumbnail.png",baos.toByteArray());
+	    	
+	    	ZipEntry entry=new ZipEntry("stack.xml");
+	    	zout.putNextEntry(entry);
+	    	XMLOutputFactory xmlfactory= XMLOutputFactory.newInstance();
+	    	XMLStreamWriter w= xmlfactory.createXMLStreamWriter(zout,"UTF-8");
+	    	w.writeStartDocument("UTF-8","1.0");
+	    	w.writeStartElement("image");
+	    	w.writeAttribute("w",String.valueOf(width));
+	    	w.writeAttribute("h",String.valueOf(height));
+	    	w.writeStartElement("stack");
+	    	
+	    	/* the first layer of the stack is the top one */
+	    	for(int i=layers.size()-1;i>=0;--i)
+	    		{
+		    	w.writeEmptyElement("layer");
+		    	w.writeAttribute("src",layerPath(i));
+		    	w.writeAttribute("x","0");
+		    	w.writeAttribute("y","0");
+		    	w.writeAttribute("opacity","0.4");
+		    	w.writeAttribute("visibility","visible");
+	    		}
+	
+	    	
+	    	w.writeEndElement();//stack
+	    	w.writeEndElement();//image
+	    	w.writeEndDocument();
+	    	w.flush();
+	    	zout.closeEntry();
+	    	
+	    	
+	    	
+	    	zout.finish();
+	    	zout.flush();
+	    	fout.flush();
+	    	}
+    	finally
+    		{
+    		executor.shutdownNow();
+    		fout.close();
+    		}
     	
     	
     	}
@@ -129,6 +233,8 @@ public class RasterToOpenRaster
 					System.out.println("Pierre Lindenbaum PhD. 2011");
 					System.out.println("-x (float) image ratio (1.0)");
 					System.out.println("-o <fileout.ora> filename out. (required)");
+					System.out.println("-t (int) number of threads encoding the layers ("+app.nThreads+")");
+					System.out.println("image1 image2 ... : the layers, from the bottom to the top");
 					return;
 					}
 				else if(args[optind].equals("-o"))
@@ -139,6 +245,10 @@ public class RasterToOpenRaster
 					{
 					app.ratio=Double.parseDouble(args[++optind]);
 					}
+				else if(args[optind].equals("-t"))
+					{
+					app.nThreads=Math.max(1,Integer.parseInt(args[++optind]));
+					}
 				else if(args[optind].equals("--"))
 					{
 					optind++;
@@ -168,7 +278,7 @@ public class RasterToOpenRaster
 				return;
 				}
 			
-			if(optind+1!=args.length)
+			if(optind==args.length)
 				{
 				System.err.println("Illegal number of arguments");
 				return;
@@ -176,21 +286,11 @@ public class RasterToOpenRaster
 			
 			
 			
-			String filename=args[optind];
-			/* MyPaint only want PNG
-			  if(filename.toLowerCase().endsWith(".png")) */
-				{
-				app.format="PNG";
-				} 
-			if( filename.startsWith("http://") ||
-				filename.startsWith("https://") ||
-				filename.startsWith("ftp://"))
-				{
-				app.srcImage=ImageIO.read(new URL(filename));
-				}
-			else
+			/* MyPaint only want PNG */
+			app.format="PNG";
+			while(optind< args.length)
 				{
-				app.srcImage=ImageIO.read(new File(filename));
+				app.sources.add(args[optind++]);
 				}
 			
 			app.run();
@@ -19,17 +19,36 @@ import java.awt.event.ContainerAdapter;
 import java.awt.event.ContainerEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -239,6 +258,17 @@ interface Store
 	public OntModel getOntModel();
 	public InstanceOfClass getInstanceById(String id);
 	public CloseableIterator<InstanceOfClass> listInstances();
+	/** the instances of 'ontClass' */
+	public CloseableIterator<InstanceOfClass> listInstances(OntClass ontClass);
+	/** the instances having 'value' for the property 'ontProperty' */
+	public CloseableIterator<InstanceOfClass> listInstances(OntProperty ontProperty,String value);
+	/** adds the instance or replaces the instance having the same id */
+	public void insert(InstanceOfClass instance);
+	public void delete(InstanceOfClass instance);
+	/** number of instances of 'ontClass', or of all the instances if it is null */
+	public int getInstanceCount(OntClass ontClass);
+	/** at most 'count' instances, starting at index 'start' of listInstances(ontClass), or of listInstances() if it is null */
+	public List<InstanceOfClass> getInstances(OntClass ontClass,int start,int count);
 	}
 
 
@@ -993,8 +1023,18 @@ class DataStoreImpl
 	implements Store
 	{
 	private OntModel model;
-	private List<InstanceOfClass> instances=new Vector<InstanceOfClass>();
-	
+	/** id to instance, in the order of insertion */
+	private Map<String,InstanceOfClass> id2instance=new LinkedHashMap<String,InstanceOfClass>();
+	/** the instances of each class */
+	private Map<OntClass,Set<InstanceOfClass>> extents=new HashMap<OntClass,Set<InstanceOfClass>>();
+	/** property to value to the instances having this value */
+	private Map<OntProperty,Map<String,Set<InstanceOfClass>>> values=new HashMap<OntProperty,Map<String,Set<InstanceOfClass>>>();
+	/** the property/value pairs of an instance when it was indexed: an instance may be modified after its insertion */
+	private Map<String,List<Map.Entry<OntProperty,String>>> indexedValues=new HashMap<String,List<Map.Entry<OntProperty,String>>>();
+	private long idGenerator=0L;
+	/** the instances of a class (all if the key is null), by index: built on demand, cleared by insert and delete */
+	private Map<OntClass,List<InstanceOfClass>> positions=new HashMap<OntClass,List<InstanceOfClass>>();
+
 	private class IterorImpl
 		implements CloseableIterator<InstanceOfClass>
 		{
@@ -1031,37 +1071,149 @@ class DataStoreImpl
 		this.model=model;
 		}
 	
+	/** the iterators work on a copy: the store can be modified while iterating */
+	private CloseableIterator<InstanceOfClass> iterator(Collection<InstanceOfClass> c)
+		{
+		if(c==null || c.isEmpty())
+			{
+			return new IterorImpl(Collections.<InstanceOfClass>emptyList().iterator());
+			}
+		return new IterorImpl(new ArrayList<InstanceOfClass>(c).iterator());
+		}
+
 	@Override
-	public CloseableIterator<InstanceOfClass> listInstances()
+	public synchronized CloseableIterator<InstanceOfClass> listInstances()
 		{
-		return new IterorImpl(this.instances.iterator());
+		return iterator(this.id2instance.values());
 		}
-	
-	
+
 	@Override
-	public InstanceOfClass getInstanceById(String id)
+	public synchronized CloseableIterator<InstanceOfClass> listInstances(OntClass ontClass)
 		{
-		CloseableIterator<InstanceOfClass> iter=null;
-		try
+		return iterator(this.extents.get(ontClass));
+		}
+
+	@Override
+	public synchronized CloseableIterator<InstanceOfClass> listInstances(OntProperty ontProperty,String value)
+		{
+		Map<String,Set<InstanceOfClass>> value2instances=this.values.get(ontProperty);
+		return iterator(value2instances==null?null:value2instances.get(value));
+		}
+
+	@Override
+	public synchronized InstanceOfClass getInstanceById(String id)
+		{
+		return this.id2instance.get(id);
+		}
+
+	@Override
+	public synchronized int getInstanceCount(OntClass ontClass)
+		{
+		if(ontClass==null) return this.id2instance.size();
+		Set<InstanceOfClass> extent=this.extents.get(ontClass);
+		return extent==null?0:extent.size();
+		}
+
+	@Override
+	public synchronized List<InstanceOfClass> getInstances(OntClass ontClass,int start,int count)
+		{
+		List<InstanceOfClass> L=this.positions.get(ontClass);
+		if(L==null)
 			{
-			iter=listInstances();
-			while(iter.hasNext())
+			Collection<InstanceOfClass> c=(ontClass==null?this.id2instance.values():this.extents.get(ontClass));
+			L=(c==null?new ArrayList<InstanceOfClass>():new ArrayList<InstanceOfClass>(c));
+			this.positions.put(ontClass, L);
+			}
+		start=Math.max(0, Math.min(start, L.size()));
+		int end=Math.min(L.size(), start+Math.max(0, count));
+		return new ArrayList<InstanceOfClass>(L.subList(start, end));
+		}
+
+	@Override
+	public synchronized void insert(InstanceOfClass instance)
+		{
+		if(instance.getId()==null)
+			{
+			if(!(instance instanceof InstanceOfClassImpl))
 				{
-				InstanceOfClass i=iter.next();
-				if(i.getId().equals(id)) return i;
+				throw new IllegalArgumentException("instance without id");
 				}
+			String id;
+			do
+				{
+				id="_"+(++idGenerator);
+				} while(this.id2instance.containsKey(id));
+			InstanceOfClassImpl.class.cast(instance).setId(id);
 			}
-		catch (Exception err)
+		InstanceOfClass previous=this.id2instance.get(instance.getId());
+		if(previous!=null) unindex(previous);
+		this.id2instance.put(instance.getId(), instance);
+		this.positions.clear();
+
+		Set<InstanceOfClass> extent=this.extents.get(instance.getOntClass());
+		if(extent==null)
 			{
-			throw new RuntimeException(err);
+			extent=new LinkedHashSet<InstanceOfClass>();
+			this.extents.put(instance.getOntClass(), extent);
 			}
-		finally
+		extent.add(instance);
+
+		List<Map.Entry<OntProperty,String>> pairs=new ArrayList<Map.Entry<OntProperty,String>>(instance.getProperties().size());
+		for(InstanceOfProperty iop:instance.getProperties())
 			{
-			if(iter!=null) iter.close();
+			pairs.add(new AbstractMap.SimpleImmutableEntry<OntProperty,String>(iop.getOntProperty(),iop.getValue()));
+			}
+		this.indexedValues.put(instance.getId(), pairs);
+		for(Map.Entry<OntProperty,String> pair:pairs)
+			{
+			Map<String,Set<InstanceOfClass>> value2instances=this.values.get(pair.getKey());
+			if(value2instances==null)
+				{
+				value2instances=new HashMap<String,Set<InstanceOfClass>>();
+				this.values.put(pair.getKey(), value2instances);
+				}
+			Set<InstanceOfClass> set=value2instances.get(pair.getValue());
+			if(set==null)
+				{
+				set=new LinkedHashSet<InstanceOfClass>();
+				value2instances.put(pair.getValue(), set);
+				}
+			set.add(instance);
 			}
-		return null;
 		}
-	
+
+	@Override
+	public synchronized void delete(InstanceOfClass instance)
+		{
+		InstanceOfClass previous=this.id2instance.remove(instance.getId());
+		if(previous!=null) unindex(previous);
+		this.positions.clear();
+		}
+
+	/** removes the instance from the extents and the values */
+	private void unindex(InstanceOfClass instance)
+		{
+		Set<InstanceOfClass> extent=this.extents.get(instance.getOntClass());
+		if(extent!=null)
+			{
+			extent.remove(instance);
+			if(extent.isEmpty()) this.extents.remove(instance.getOntClass());
+			}
+		List<Map.Entry<OntProperty,String>> pairs=this.indexedValues.remove(instance.getId());
+		if(pairs==null) return;
+		for(Map.Entry<OntProperty,String> pair:pairs)
+			{
+			Map<String,Set<InstanceOfClass>> value2instances=this.values.get(pair.getKey());
+			if(value2instances==null) continue;
+			Set<InstanceOfClass> set=value2instances.get(pair.getValue());
+			if(set==null) continue;
+			set.remove(instance);
+			if(!set.isEmpty()) continue;
+			value2instances.remove(pair.getValue());
+			if(value2instances.isEmpty()) this.values.remove(pair.getKey());
+			}
+		}
+
 	@Override
 	public OntModel getOntModel()
 		{
@@ -1243,6 +1395,492 @@ class DataStoreImpl
 	
 	}
 
+/**
+ * LogStoreImpl: a Store on disk. Each insert or delete appends a record
+ * to a log file; only the id, the class and the offset of the last record
+ * of each instance are kept in memory, the instances are read from the log
+ * when they are needed. The index is saved in 'file.idx' by close() so the
+ * next opening only scans the records written after it.
+ * An instance is persisted by insert(): a loaded instance modified later
+ * must be inserted again.
+ */
+class LogStoreImpl
+	implements Store,Closeable
+	{
+	private static final int IDX_MAGIC=0x53544931;
+	private static final byte INSERT='I';
+	private static final byte DELETE='D';
+	private static final int CACHE_CAPACITY=1024;
+	private static final Charset UTF8=Charset.forName("UTF-8");
+	
+	/** location of the last record of an instance */
+	private static class Entry
+		{
+		final String id;
+		final OntClass ontClass;
+		final long offset;
+		Entry(String id,OntClass ontClass,long offset)
+			{
+			this.id=id;
+			this.ontClass=ontClass;
+			this.offset=offset;
+			}
+		}
+	
+	private OntModel model;
+	private File file;
+	private RandomAccessFile raf;
+	/** id to last record, in the order of insertion */
+	private Map<String,Entry> id2entry=new LinkedHashMap<String,Entry>();
+	/** the entries of a class (all if the key is null), by index: built on demand, cleared by insert and delete */
+	private Map<OntClass,Entry[]> positions=new HashMap<OntClass,Entry[]>();
+	/** recently used instances */
+	private Map<String,InstanceOfClass> cache=new LinkedHashMap<String,InstanceOfClass>(CACHE_CAPACITY,0.75f,true)
+		{
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,InstanceOfClass> eldest)
+			{
+			return size()>CACHE_CAPACITY;
+			}
+		};
+	private long idGenerator=0L;
+	
+	/**
+	 * iterates over a copy of the entries; the records are read from a
+	 * file opened by the iterator, one at a time.
+	 */
+	private class RecordIterator
+		implements CloseableIterator<InstanceOfClass>
+		{
+		private Entry entries[];
+		private int index=0;
+		private OntProperty ontProperty;
+		private String value;
+		private RandomAccessFile in=null;
+		private InstanceOfClass next=null;
+		
+		RecordIterator(Entry entries[],OntProperty ontProperty,String value)
+			{
+			this.entries=entries;
+			this.ontProperty=ontProperty;
+			this.value=value;
+			}
+		
+		private boolean accept(InstanceOfClass instance)
+			{
+			if(this.ontProperty==null) return true;
+			for(InstanceOfProperty iop:instance.getProperties(this.ontProperty))
+				{
+				if(this.value.equals(iop.getValue())) return true;
+				}
+			return false;
+			}
+		
+		@Override
+		public boolean hasNext()
+			{
+			try
+				{
+				while(this.next==null && this.index< this.entries.length)
+					{
+					Entry entry=this.entries[this.index++];
+					InstanceOfClass instance;
+					synchronized(LogStoreImpl.this)
+						{
+						instance=cache.get(entry.id);
+						}
+					if(instance==null)
+						{
+						if(this.in==null) this.in=new RandomAccessFile(file, "r");
+						instance=readInstance(this.in, entry.offset);
+						}
+					if(accept(instance)) this.next=instance;
+					}
+				}
+			catch(IOException err)
+				{
+				close();
+				throw new RuntimeException(err);
+				}
+			if(this.next==null) close();
+			return this.next!=null;
+			}
+		
+		@Override
+		public InstanceOfClass next()
+			{
+			if(!hasNext()) throw new java.util.NoSuchElementException();
+			InstanceOfClass instance=this.next;
+			this.next=null;
+			return instance;
+			}
+		
+		@Override
+		public void remove()
+			{
+			throw new UnsupportedOperationException();
+			}
+		
+		@Override
+		public void close()
+			{
+			this.index=this.entries.length;
+			if(this.in==null) return;
+			try { this.in.close(); } catch(IOException err) {}
+			this.in=null;
+			}
+		}
+	
+	public LogStoreImpl(OntModel model,File file)
+		throws IOException
+		{
+		this.model=model;
+		this.file=file;
+		this.raf=new RandomAccessFile(file, "rw");
+		long start=readIndex();
+		scan(start);
+		}
+	
+	private File getIndexFile()
+		{
+		return new File(this.file.getParentFile(),this.file.getName()+".idx");
+		}
+	
+	private static void writeString(DataOutput out,String s)
+		throws IOException
+		{
+		byte array[]=s.getBytes(UTF8);
+		out.writeInt(array.length);
+		out.write(array);
+		}
+	
+	private static String readString(DataInput in)
+		throws IOException
+		{
+		byte array[]=new byte[in.readInt()];
+		in.readFully(array);
+		return new String(array,UTF8);
+		}
+	
+	private void skipFully(DataInputStream in,long n)
+		throws IOException
+		{
+		while(n>0)
+			{
+			int skipped=in.skipBytes((int)Math.min(n, Integer.MAX_VALUE));
+			if(skipped<=0) throw new EOFException();
+			n-=skipped;
+			}
+		}
+	
+	/** loads the saved index, returns the offset of the first record it doesn't contain */
+	private long readIndex()
+		throws IOException
+		{
+		File idx=getIndexFile();
+		if(!idx.exists()) return 0L;
+		DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+		try
+			{
+			if(in.readInt()!=IDX_MAGIC) return 0L;
+			long logLength=in.readLong();
+			/* the log was replaced or truncated */
+			if(logLength>this.raf.length()) return 0L;
+			int n=in.readInt();
+			for(int i=0;i< n;++i)
+				{
+				String id=readString(in);
+				OntClass ontClass=this.model.getOntClassByUri(readString(in));
+				long offset=in.readLong();
+				if(ontClass==null) throw new IOException("unknown class in "+idx);
+				this.id2entry.put(id, new Entry(id,ontClass,offset));
+				}
+			return logLength;
+			}
+		catch(IOException err)
+			{
+			this.id2entry.clear();
+			return 0L;
+			}
+		finally
+			{
+			in.close();
+			}
+		}
+	
+	/** reads the headers of the records starting at 'start'. A truncated last record is discarded */
+	private void scan(long start)
+		throws IOException
+		{
+		long length=this.raf.length();
+		FileInputStream fin=new FileInputStream(this.file);
+		try
+			{
+			fin.getChannel().position(start);
+			DataInputStream in=new DataInputStream(new BufferedInputStream(fin,65536));
+			long offset=start;
+			while(offset< length)
+				{
+				try
+					{
+					int recordLength=in.readInt();
+					if(offset+4+recordLength>length) throw new EOFException();
+					byte type=in.readByte();
+					String id=readString(in);
+					String classUri=readString(in);
+					skipFully(in,recordLength-(1+4+id.getBytes(UTF8).length+4+classUri.getBytes(UTF8).length));
+					if(type==DELETE)
+						{
+						this.id2entry.remove(id);
+						}
+					else
+						{
+						OntClass ontClass=this.model.getOntClassByUri(classUri);
+						if(ontClass==null) throw new IOException("unknown class "+classUri+" in "+this.file);
+						this.id2entry.put(id, new Entry(id,ontClass,offset));
+						}
+					offset+=4+recordLength;
+					}
+				catch(EOFException err)
+					{
+					this.raf.setLength(offset);
+					break;
+					}
+				}
+			}
+		finally
+			{
+			fin.close();
+			}
+		}
+	
+	private InstanceOfClass readInstance(RandomAccessFile in,long offset)
+		throws IOException
+		{
+		in.seek(offset);
+		byte array[]=new byte[in.readInt()];
+		in.readFully(array);
+		DataInputStream data=new DataInputStream(new ByteArrayInputStream(array));
+		if(data.readByte()!=INSERT) throw new IOException("not an instance at "+offset+" in "+this.file);
+		String id=readString(data);
+		OntClass ontClass=this.model.getOntClassByUri(readString(data));
+		if(ontClass==null) throw new IOException("unknown class at "+offset+" in "+this.file);
+		InstanceOfClassImpl instance=new InstanceOfClassImpl(this, ontClass);
+		instance.setId(id);
+		int n=data.readInt();
+		for(int i=0;i< n;++i)
+			{
+			String propUri=readString(data);
+			String value=readString(data);
+			for(OntProperty ontProperty:ontClass.getProperties())
+				{
+				if(!ontProperty.getUri().equals(propUri)) continue;
+				instance.getProperties().add(new InstanceOfPropertyImpl(instance, ontProperty, value));
+				break;
+				}
+			}
+		return instance;
+		}
+	
+	/** appends a record, returns its offset */
+	private long append(byte type,InstanceOfClass instance)
+		throws IOException
+		{
+		ByteArrayOutputStream baos=new ByteArrayOutputStream();
+		DataOutputStream out=new DataOutputStream(baos);
+		out.writeInt(0);
+		out.writeByte(type);
+		writeString(out,instance.getId());
+		writeString(out,type==DELETE?"":instance.getOntClass().getUri());
+		if(type==INSERT)
+			{
+			out.writeInt(instance.getProperties().size());
+			for(InstanceOfProperty iop:instance.getProperties())
+				{
+				writeString(out,iop.getOntProperty().getUri());
+				writeString(out,iop.getValue());
+				}
+			}
+		out.flush();
+		byte array[]=baos.toByteArray();
+		int recordLength=array.length-4;
+		array[0]=(byte)(recordLength>>>24);
+		array[1]=(byte)(recordLength>>>16);
+		array[2]=(byte)(recordLength>>>8);
+		array[3]=(byte)recordLength;
+		long offset=this.raf.length();
+		this.raf.seek(offset);
+		this.raf.write(array);
+		return offset;
+		}
+	
+	private Entry[] entries(OntClass ontClass)
+		{
+		Entry array[]=this.positions.get(ontClass);
+		if(array!=null) return array;
+		if(ontClass==null)
+			{
+			array=this.id2entry.values().toArray(new Entry[this.id2entry.size()]);
+			}
+		else
+			{
+			List<Entry> L=new ArrayList<Entry>();
+			for(Entry e:entries(null))
+				{
+				if(e.ontClass.equals(ontClass)) L.add(e);
+				}
+			array=L.toArray(new Entry[L.size()]);
+			}
+		this.positions.put(ontClass, array);
+		return array;
+		}
+	
+	@Override
+	public OntModel getOntModel()
+		{
+		return this.model;
+		}
+	
+	@Override
+	public synchronized InstanceOfClass getInstanceById(String id)
+		{
+		InstanceOfClass instance=this.cache.get(id);
+		if(instance!=null) return instance;
+		Entry entry=this.id2entry.get(id);
+		if(entry==null) return null;
+		try
+			{
+			instance=readInstance(this.raf, entry.offset);
+			}
+		catch(IOException err)
+			{
+			throw new RuntimeException(err);
+			}
+		this.cache.put(id, instance);
+		return instance;
+		}
+	
+	@Override
+	public synchronized CloseableIterator<InstanceOfClass> listInstances()
+		{
+		return new RecordIterator(entries(null),null,null);
+		}
+	
+	@Override
+	public synchronized CloseableIterator<InstanceOfClass> listInstances(OntClass ontClass)
+		{
+		return new RecordIterator(entries(ontClass),null,null);
+		}
+	
+	/** there is no index on the values: the instances are read and tested */
+	@Override
+	public synchronized CloseableIterator<InstanceOfClass> listInstances(OntProperty ontProperty,String value)
+		{
+		return new RecordIterator(entries(null),ontProperty,value);
+		}
+	
+	@Override
+	public synchronized int getInstanceCount(OntClass ontClass)
+		{
+		if(ontClass==null) return this.id2entry.size();
+		return entries(ontClass).length;
+		}
+	
+	@Override
+	public synchronized List<InstanceOfClass> getInstances(OntClass ontClass,int start,int count)
+		{
+		Entry array[]=entries(ontClass);
+		start=Math.max(0, Math.min(start, array.length));
+		int end=Math.min(array.length, start+Math.max(0, count));
+		List<InstanceOfClass> L=new ArrayList<InstanceOfClass>(end-start);
+		for(int i=start;i< end;++i)
+			{
+			L.add(getInstanceById(array[i].id));
+			}
+		return L;
+		}
+	
+	@Override
+	public synchronized void insert(InstanceOfClass instance)
+		{
+		if(instance.getId()==null)
+			{
+			if(!(instance instanceof InstanceOfClassImpl))
+				{
+				throw new IllegalArgumentException("instance without id");
+				}
+			String id;
+			do
+				{
+				id="_"+(++idGenerator);
+				} while(this.id2entry.containsKey(id));
+			InstanceOfClassImpl.class.cast(instance).setId(id);
+			}
+		try
+			{
+			long offset=append(INSERT,instance);
+			this.id2entry.put(instance.getId(), new Entry(instance.getId(),instance.getOntClass(),offset));
+			}
+		catch(IOException err)
+			{
+			throw new RuntimeException(err);
+			}
+		this.cache.put(instance.getId(), instance);
+		this.positions.clear();
+		}
+	
+	@Override
+	public synchronized void delete(InstanceOfClass instance)
+		{
+		if(!this.id2entry.containsKey(instance.getId())) return;
+		try
+			{
+			append(DELETE,instance);
+			}
+		catch(IOException err)
+			{
+			throw new RuntimeException(err);
+			}
+		this.id2entry.remove(instance.getId());
+		this.cache.remove(instance.getId());
+		this.positions.clear();
+		}
+	
+	/** saves the index and closes the log */
+	@Override
+	public synchronized void close()
+		throws IOException
+		{
+		if(this.raf==null) return;
+		File idx=getIndexFile();
+		File tmp=File.createTempFile("tmp.", ".idx", idx.getAbsoluteFile().getParentFile());
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try
+			{
+			out.writeInt(IDX_MAGIC);
+			out.writeLong(this.raf.length());
+			out.writeInt(this.id2entry.size());
+			for(Entry e:this.id2entry.values())
+				{
+				writeString(out,e.id);
+				writeString(out,e.ontClass.getUri());
+				out.writeLong(e.offset);
+				}
+			}
+		finally
+			{
+			out.close();
+			}
+		if(!(tmp.renameTo(idx) || (idx.delete() && tmp.renameTo(idx))))
+			{
+			tmp.delete();
+			}
+		this.raf.close();
+		this.raf=null;
+		}
+	}
+
 /** InstanceOfPropertyImpl */
 class InstanceOfPropertyImpl
 	implements InstanceOfProperty
@@ -1250,6 +1888,14 @@ class InstanceOfPropertyImpl
 	private OntProperty ontProperty;
 	private InstanceOfClass instance;
 	private String value="";
+	
+	InstanceOfPropertyImpl(InstanceOfClass instance,OntProperty ontProperty,String value)
+		{
+		this.instance=instance;
+		this.ontProperty=ontProperty;
+		this.value=value;
+		}
+	
 	@Override
 	public InstanceOfClass getInstance()
 		{
@@ -1304,6 +1950,11 @@ class InstanceOfClassImpl
 		return id;
 		}
 
+	void setId(String id)
+		{
+		this.id=id;
+		}
+
 	@Override
 	public String getName()
 		{
@@ -1350,14 +2001,86 @@ class InstanceOfClassImpl
 	}
 
 
+/**
+ * InstanceTable: the instances of some classes. Only the number of instances
+ * of each class is asked to the store; the instances are fetched by pages,
+ * when the table displays their rows.
+ */
 class InstanceTable
 	extends AbstractTableModel
 	{
-	private Vector<InstanceOfClass> instances=new Vector<InstanceOfClass>();
+	private static final long serialVersionUID = 1L;
+	private static final int PAGE_SIZE=100;
+	private static final int PAGE_COUNT=10;
+	private Store store;
+	/** the classes displayed, one after the other */
+	private List<OntClass> ontClasses=new ArrayList<OntClass>();
+	/** offsets[i] is the first row of ontClasses[i]; the last item is the number of rows */
+	private int offsets[]=new int[]{0};
+	/** the last pages read, the key is (class index, page) */
+	private Map<Long,List<InstanceOfClass>> pages=new LinkedHashMap<Long,List<InstanceOfClass>>(PAGE_COUNT,0.75f,true)
+		{
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long,List<InstanceOfClass>> eldest)
+			{
+			return size()>PAGE_COUNT;
+			}
+		};
+	
+	InstanceTable(Store store)
+		{
+		this.store=store;
+		}
+	
+	/** displays the instances of 'ontClasses'; to be called when the store was modified */
+	public void reload(List<OntClass> ontClasses)
+		{
+		this.pages.clear();
+		this.ontClasses=new ArrayList<OntClass>(ontClasses);
+		this.offsets=new int[this.ontClasses.size()+1];
+		for(int i=0;i< this.ontClasses.size();++i)
+			{
+			this.offsets[i+1]=this.offsets[i]+this.store.getInstanceCount(this.ontClasses.get(i));
+			}
+		fireTableDataChanged();
+		}
 	
 	public InstanceOfClass getInstanceAt(int rowIndex)
 		{
-		return this.instances.get(rowIndex);
+		int k=Arrays.binarySearch(this.offsets, rowIndex);
+		/* several classes may start at this row: the last one is not empty */
+		if(k>=0)
+			{
+			while(k+1< this.offsets.length && this.offsets[k+1]==rowIndex) ++k;
+			}
+		else
+			{
+			k=-k-2;
+			}
+		if(k< 0 || k>=this.ontClasses.size()) return null;
+		int local=rowIndex-this.offsets[k];
+		int page=local/PAGE_SIZE;
+		Long key=(((long)k)<<32)|page;
+		List<InstanceOfClass> instances=this.pages.get(key);
+		if(instances==null)
+			{
+			instances=this.store.getInstances(this.ontClasses.get(k),page*PAGE_SIZE, PAGE_SIZE);
+			this.pages.put(key, instances);
+			}
+		int i=local%PAGE_SIZE;
+		return i< instances.size()?instances.get(i):null;
+		}
+	
+	@Override
+	public String getColumnName(int column)
+		{
+		switch(column)
+			{
+			case 0: return "Name";
+			case 1: return "Class";
+			}
+		return null;
 		}
 	
 	@Override
@@ -1370,10 +2093,11 @@ class InstanceTable
 	public Object getValueAt(int rowIndex, int columnIndex)
 		{
 		InstanceOfClass ioc= getInstanceAt(rowIndex);
+		if(ioc==null) return null;
 		switch(columnIndex)
 			{
-			case 0:return ioc.getName();
-			case 1:return ioc.getDescription();
+			case 0:return ioc.getName()==null?ioc.getId():ioc.getName();
+			case 1:return ioc.getOntClass().getLabel();
 			}
 		return null;
 		}
@@ -1381,7 +2105,7 @@ class InstanceTable
 	@Override
 	public int getRowCount()
 		{
-		return instances.size();
+		return this.offsets[this.offsets.length-1];
 		}
 	@Override
 	public boolean isCellEditable(int rowIndex, int columnIndex)
@@ -2039,7 +2763,8 @@ class Frame
 	private boolean documentModified=false;
 	private JPanel cardPane;
 	private Map<OntClass, Boolean> showOntClasses;
-	private JList  instanceList;
+	private JTable instanceTable;
+	private InstanceTable instanceTableModel;
 	class LabelPane
 		{
 		OntProperty property;
@@ -2103,7 +2828,7 @@ class Frame
 		this.cardPane.add(contentPane,"MAIN");
 		
 		contentPane.add(new JScrollPane(
-			this.instanceList=new JList(new DefaultListModel()))
+			this.instanceTable=new JTable(this.instanceTableModel=new InstanceTable(dataStore)))
 			);
 		
 		Box top=Box.createVerticalBox();
@@ -2132,9 +2857,9 @@ class Frame
 			@Override
 			public void actionPerformed(ActionEvent e)
 				{
-				int i=instanceList.getSelectedIndex();
+				int i=instanceTable.getSelectedRow();
 				if(i==-1) return;
-				InstanceOfClass instance=(InstanceOfClass)instanceList.getSelectedValue();
+				InstanceOfClass instance=instanceTableModel.getInstanceAt(i);
 				editInstance(instance);
 				}
 			};
@@ -2196,7 +2921,9 @@ class Frame
 		editor.setVisible(true);
 		if(editor.getExitStatus()!=JOptionPane.OK_OPTION) return;
 		InstanceOfClass instance=editor.getInstance();
+		this.dataStore.insert(instance);
 		documentModified=true;
+		reloadInstanceList();
 		}
 	
 	private void editInstance(InstanceOfClass instance)
@@ -2207,32 +2934,28 @@ class Frame
 	
 	private void reloadInstanceList()
 		{
-		DefaultListModel lm=DefaultListModel.class.cast(this.instanceList.getModel());
-		lm.setSize(0);
-		CloseableIterator<InstanceOfClass> iter=null;
-		try
-			{
-			iter=getDataStore().listInstances();
-			while(iter.hasNext())
-				{
-				InstanceOfClass i=iter.next();
-				OntClass clazz=i.getOntClass();
-				if(!this.showOntClasses.get(clazz)) continue;
-				lm.addElement(i);
-				}
-			}
-		catch (Exception e)
-			{
-			throw new RuntimeException(e);
-			}
-		finally
+		/* the table only asks the store the number of instances of the visible classes */
+		List<OntClass> visible=new ArrayList<OntClass>();
+		for(OntClass clazz:getSchema().getOntClasses())
 			{
-			if(iter!=null) iter.close();
+			if(this.showOntClasses.get(clazz)) visible.add(clazz);
 			}
+		this.instanceTableModel.reload(visible);
 		}
 	
 	private void doMenuClose()
 		{
+		if(this.dataStore instanceof Closeable)
+			{
+			try
+				{
+				Closeable.class.cast(this.dataStore).close();
+				}
+			catch(IOException err)
+				{
+				JOptionPane.showMessageDialog(this, String.valueOf(err.getMessage()));
+				}
+			}
 		this.setVisible(false);
 		this.dispose();
 		}
@@ -2325,6 +3048,7 @@ public class Structured
 			JDialog.setDefaultLookAndFeelDecorated(true);
 			
 			
+			File storeFile=null;
 			int optind=0;
 			while(optind< args.length)
 				{
@@ -2334,8 +3058,13 @@ public class Structured
 					{
 					System.err.println("Options:");
 					System.err.println(" -h help; This screen.");
+					System.err.println(" -s <file> store the instances in this file. Default: in memory.");
 					return;
 					}
+				else if(args[optind].equals("-s"))
+					{
+					storeFile=new File(args[++optind]);
+					}
 				else if(args[optind].equals("-p"))
 					{
 					//program= args[++optind];
@@ -2379,7 +3108,10 @@ public class Structured
 				return;
 				}
 			
-			DataStoreImpl dataStore=new DataStoreImpl(model);
+			Store dataStore=(storeFile==null?
+				new DataStoreImpl(model):
+				new LogStoreImpl(model,storeFile)
+				);
 			final Frame f=new Frame(dataStore);
 			SwingUtilities.invokeAndWait(new Runnable()
 				{
@@ -0,0 +1,414 @@
+package sandbox;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Loads images from files or URLs and keeps the decoded, downscaled
+ * thumbnails in an in-memory LRU and in a directory on disk.
+ * Images read at their original size are never kept in memory; on
+ * disk, only those read from a URL are cached, to save the download.
+ * The LRU is bounded by the total number of pixels of its thumbnails,
+ * and each caller gets its own copy of a thumbnail.
+ *
+ * A thumbnail is keyed by its source and its requested size. It is
+ * re-used as long as the source did not change: for a file, its
+ * modification time and its length are compared; for a HTTP URL, the
+ * server is asked with a conditional request (If-None-Match /
+ * If-Modified-Since) and the cached image is used on '304 Not Modified'.
+ * Entries of the in-memory LRU are not revalidated during a run.
+ *
+ * The directory is given by the system property 'jsandbox.thumbnails.dir'
+ * (default: ~/.cache/jsandbox/thumbnails). An empty value disables
+ * the cache on disk.
+ */
+public class ThumbnailCache
+	{
+	private static final Logger LOG=Logger.getLogger("jsandbox");
+	public static final String DIRECTORY_PROPERTY="jsandbox.thumbnails.dir";
+	private static ThumbnailCache INSTANCE=null;
+
+	/** directory for the cache on disk, may be null */
+	private final File directory;
+	/** thumbnails in memory, in access order */
+	private final Map<String,BufferedImage> memory=new LinkedHashMap<String,BufferedImage>(16,0.75f,true);
+	/** max number of pixels in 'memory' */
+	private final long maxPixels;
+	/** number of pixels in 'memory' */
+	private long pixels=0L;
+
+	/** requested size of a thumbnail */
+	private static class Spec
+		{
+		/** max width, max height: ignored if <=0 */
+		final int width;
+		final int height;
+		/** if true, the smallest side is scaled to 'width' */
+		final boolean cover;
+		Spec(int width,int height,boolean cover)
+			{
+			this.width=width;
+			this.height=height;
+			this.cover=cover;
+			}
+
+		boolean isOriginal()
+			{
+			return width<=0 && height<=0;
+			}
+
+		/** scale to apply to an image of w x h pixels, never greater than 1 */
+		double scale(int w,int h)
+			{
+			double scale=1.0;
+			if(cover)
+				{
+				scale=width/(double)Math.min(w, h);
+				}
+			else
+				{
+				if(width>0) scale=Math.min(scale, width/(double)w);
+				if(height>0) scale=Math.min(scale, height/(double)h);
+				}
+			return Math.min(1.0, scale);
+			}
+
+		@Override
+		public String toString()
+			{
+			return (cover?"cover:":"fit:")+width+"x"+height;
+			}
+		}
+
+	public ThumbnailCache(final File directory,final long maxPixels)
+		{
+		this.directory=directory;
+		this.maxPixels=maxPixels;
+		}
+
+	/** the cache shared by the image tools */
+	public static synchronized ThumbnailCache getInstance()
+		{
+		if(INSTANCE==null)
+			{
+			String dir=System.getProperty(DIRECTORY_PROPERTY);
+			if(dir==null)
+				{
+				dir=new File(System.getProperty("user.home"),
+					".cache"+File.separator+"jsandbox"+File.separator+"thumbnails").getPath();
+				}
+			/* 16M pixels: 64Mb of ARGB */
+			INSTANCE=new ThumbnailCache(dir.trim().isEmpty()?null:new File(dir),16L*1024L*1024L);
+			}
+		return INSTANCE;
+		}
+
+	/** returns the image at its original size, or null if it cannot be decoded */
+	public BufferedImage read(final String source) throws IOException
+		{
+		return load(source,new Spec(-1,-1,false));
+		}
+
+	/**
+	 * returns the image scaled down to fit in width x height, or null if it
+	 * cannot be decoded. A dimension <=0 is not constrained.
+	 */
+	public BufferedImage fit(final String source,int width,int height) throws IOException
+		{
+		return load(source,new Spec(width,height,false));
+		}
+
+	/**
+	 * returns the image scaled down so that its smallest side is 'size',
+	 * or null if it cannot be decoded.
+	 */
+	public BufferedImage cover(final String source,int size) throws IOException
+		{
+		return load(source,new Spec(size,size,true));
+		}
+
+	private static boolean isURL(final String source)
+		{
+		return	source.startsWith("http://") ||
+				source.startsWith("https://") ||
+				source.startsWith("ftp://");
+		}
+
+	private BufferedImage load(final String source,final Spec spec) throws IOException
+		{
+		final boolean is_url=isURL(source);
+		final File file=(is_url?null:new File(source));
+		/* version of a local file */
+		final String version=(file==null?"":file.lastModified()+":"+file.length());
+		final String memoryKey=source+"\t"+spec+"\t"+version;
+		if(!spec.isOriginal())
+			{
+			synchronized(this.memory)
+				{
+				final BufferedImage img=this.memory.get(memoryKey);
+				if(img!=null) return copy(img);
+				}
+			}
+
+		BufferedImage img;
+		/* decoding a local file at its original size is as fast as reading the cache */
+		if(this.directory==null || (file!=null && spec.isOriginal()))
+			{
+			img=(file!=null?decode(file,spec):decode(new URL(source).openConnection(),spec));
+			}
+		else
+			{
+			final String hash=sha1(source+"\t"+spec);
+			final File pngFile=new File(this.directory,hash+".png");
+			final File propFile=new File(this.directory,hash+".properties");
+			final Properties cached=new Properties();
+			if(propFile.exists() && pngFile.exists())
+				{
+				InputStream in=new FileInputStream(propFile);
+				try { cached.load(in); } finally { in.close(); }
+				}
+			final Properties meta=new Properties();
+			meta.setProperty("source", source);
+			meta.setProperty("size", spec.toString());
+
+			img=null;
+			if(file!=null)
+				{
+				meta.setProperty("version", version);
+				if(version.equals(cached.getProperty("version")))
+					{
+					img=ImageIO.read(pngFile);
+					}
+				if(img==null)
+					{
+					img=decode(file,spec);
+					if(img!=null) store(img,meta,pngFile,propFile);
+					}
+				}
+			else
+				{
+				URLConnection con=new URL(source).openConnection();
+				if(con instanceof HttpURLConnection)
+					{
+					final HttpURLConnection http=HttpURLConnection.class.cast(con);
+					if(cached.getProperty("etag")!=null)
+						{
+						http.setRequestProperty("If-None-Match", cached.getProperty("etag"));
+						}
+					if(cached.getProperty("last-modified")!=null)
+						{
+						http.setRequestProperty("If-Modified-Since", cached.getProperty("last-modified"));
+						}
+					if(!cached.isEmpty() && http.getResponseCode()==HttpURLConnection.HTTP_NOT_MODIFIED)
+						{
+						LOG.fine("not modified "+source);
+						http.disconnect();
+						img=ImageIO.read(pngFile);
+						/* cached thumbnail lost: fetch again */
+						if(img==null) con=new URL(source).openConnection();
+						}
+					}
+				if(img==null)
+					{
+					img=decode(con,spec);
+					if(img!=null)
+						{
+						if(con.getHeaderField("ETag")!=null)
+							{
+							meta.setProperty("etag", con.getHeaderField("ETag"));
+							}
+						if(con.getHeaderField("Last-Modified")!=null)
+							{
+							meta.setProperty("last-modified", con.getHeaderField("Last-Modified"));
+							}
+						store(img,meta,pngFile,propFile);
+						}
+					}
+				}
+			}
+
+		if(img!=null && !spec.isOriginal()) remember(memoryKey,copy(img));
+		return img;
+		}
+
+	/** puts a thumbnail in the LRU, then removes the eldest ones until the LRU holds less than 'maxPixels' */
+	private void remember(final String key,final BufferedImage img)
+		{
+		final long n=(long)img.getWidth()*img.getHeight();
+		/* a thumbnail that would flush most of the LRU is not worth keeping */
+		if(n*8L>this.maxPixels) return;
+		synchronized(this.memory)
+			{
+			final BufferedImage old=this.memory.put(key, img);
+			if(old!=null) this.pixels-=(long)old.getWidth()*old.getHeight();
+			this.pixels+=n;
+			final Iterator<BufferedImage> iter=this.memory.values().iterator();
+			while(this.pixels>this.maxPixels && iter.hasNext())
+				{
+				final BufferedImage eldest=iter.next();
+				this.pixels-=(long)eldest.getWidth()*eldest.getHeight();
+				iter.remove();
+				}
+			}
+		}
+
+	/** copies an image, so the instance in the LRU cannot be modified by a caller */
+	private static BufferedImage copy(final BufferedImage img)
+		{
+		return new BufferedImage(
+			img.getColorModel(),
+			img.copyData(null),
+			img.isAlphaPremultiplied(),
+			null
+			);
+		}
+
+	/** writes the thumbnail, then its metadata, each through a temporary file */
+	private void store(final BufferedImage img,final Properties meta,final File pngFile,final File propFile)
+		{
+		try
+			{
+			if(!this.directory.exists() && !this.directory.mkdirs() && !this.directory.exists())
+				{
+				throw new IOException("Cannot create "+this.directory);
+				}
+			File tmp=File.createTempFile("tmp.", ".png", this.directory);
+			if(!ImageIO.write(img, "PNG", tmp) || !tmp.renameTo(pngFile))
+				{
+				tmp.delete();
+				throw new IOException("Cannot write "+pngFile);
+				}
+			tmp=File.createTempFile("tmp.", ".properties", this.directory);
+			OutputStream out=new FileOutputStream(tmp);
+			try { meta.store(out, null); } finally { out.close(); }
+			if(!tmp.renameTo(propFile))
+				{
+				tmp.delete();
+				throw new IOException("Cannot write "+propFile);
+				}
+			}
+		catch(IOException err)
+			{
+			LOG.warning("Cannot cache "+meta.getProperty("source")+" : "+err.getMessage());
+			}
+		}
+
+	private BufferedImage decode(final File file,final Spec spec) throws IOException
+		{
+		final ImageInputStream iis=ImageIO.createImageInputStream(file);
+		if(iis==null) throw new IOException("Cannot open "+file);
+		try
+			{
+			return decode(iis,spec);
+			}
+		finally
+			{
+			iis.close();
+			}
+		}
+
+	private BufferedImage decode(final URLConnection con,final Spec spec) throws IOException
+		{
+		final InputStream in=con.getInputStream();
+		try
+			{
+			final ImageInputStream iis=ImageIO.createImageInputStream(in);
+			if(iis==null) return null;
+			try
+				{
+				return decode(iis,spec);
+				}
+			finally
+				{
+				iis.close();
+				}
+			}
+		finally
+			{
+			in.close();
+			}
+		}
+
+	/**
+	 * decodes the image with the largest subsampling keeping it larger than
+	 * the thumbnail, then scales it to the requested size.
+	 */
+	private BufferedImage decode(final ImageInputStream iis,final Spec spec) throws IOException
+		{
+		final Iterator<ImageReader> readers=ImageIO.getImageReaders(iis);
+		if(!readers.hasNext()) return null;
+		final ImageReader reader=readers.next();
+		try
+			{
+			reader.setInput(iis, true, true);
+			final int w=reader.getWidth(0);
+			final int h=reader.getHeight(0);
+			final double scale=spec.scale(w, h);
+			final ImageReadParam param=reader.getDefaultReadParam();
+			final int step=Math.max(1, (int)Math.floor(1.0/scale));
+			param.setSourceSubsampling(step, step, 0, 0);
+			BufferedImage img=reader.read(0, param);
+			if(scale>=1.0) return img;
+
+			/* truncated, as the image tools did before this cache; the epsilon keeps the constrained side exact */
+			final int width=Math.max(1, (int)(w*scale+1E-9));
+			final int height=Math.max(1, (int)(h*scale+1E-9));
+			if(img.getWidth()==width && img.getHeight()==height) return img;
+			final BufferedImage scaled=new BufferedImage(
+				width,
+				height,
+				img.getColorModel().hasAlpha()?BufferedImage.TYPE_INT_ARGB:BufferedImage.TYPE_INT_RGB
+				);
+			final Graphics2D g=scaled.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(img, 0, 0, width, height, null);
+			g.dispose();
+			return scaled;
+			}
+		finally
+			{
+			reader.dispose();
+			}
+		}
+
+	private static String sha1(final String s)
+		{
+		try
+			{
+			final MessageDigest md=MessageDigest.getInstance("SHA-1");
+			final StringBuilder sb=new StringBuilder();
+			for(byte b:md.digest(s.getBytes("UTF-8")))
+				{
+				sb.append(String.format("%02x", b&0xFF));
+				}
+			return sb.toString();
+			}
+		catch(NoSuchAlgorithmException|IOException err)
+			{
+			throw new RuntimeException(err);
+			}
+		}
+	}
@@ -1,14 +1,29 @@
 package sandbox;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -16,10 +31,27 @@ import javax.xml.stream.XMLStreamWriter;
 
 public class TsvToSchema
 	{
+	private static final int BUFFER_SIZE=65536;
 	private long countLines=0;
 	private char delim='\t';
 	private List<Column> columns=null;
+	private Charset charset=Charset.defaultCharset();
+	private int nThreads=Runtime.getRuntime().availableProcessors();
+	/** if >0, only scan a sample of this number of lines */
+	private int sampleSize=0;
+	private long seed=0L;
 	private static enum Type { BOOLEAN,BYTE,CHAR,SHORT,INT,BIGINTEGER,LONG,FLOAT,DOUBLE,BIGDECIMAL,STRING};
+	/** the numeric types, each one accepts the values of the previous ones */
+	private static final List<Type> NUMERIC=Arrays.asList(
+		Type.BYTE,Type.SHORT,Type.INT,Type.LONG,
+		Type.BIGINTEGER,Type.FLOAT,Type.DOUBLE,Type.BIGDECIMAL
+		);
+	/**
+	 * A column keeps a summary of its values: are they all booleans, all
+	 * single chars, all numbers and the smallest numeric type accepting them.
+	 * The type is derived from this summary, so it doesn't depend on the
+	 * order of the values, and two summaries can be merged.
+	 */
 	private static class Column
 		{
 		String name;
@@ -28,8 +60,116 @@ public class TsvToSchema
 		boolean nillable=false;
 		boolean empty=false;
 		
+		boolean allBoolean=true;
+		boolean allChar=true;
+		boolean allNumeric=true;
+		/** index in NUMERIC of the smallest type accepting all the numeric values */
+		int numeric=0;
+		
 		Set<String> values=new HashSet<String>();
 		int length=0;
+		
+		/** @return true if 'v' can be parsed as 't' */
+		private boolean accept(Type t,String v)
+			{
+			try	{
+				switch(t)
+					{
+					case BYTE: if(Byte.parseByte(v)<0) this.signed=true; break;
+					case SHORT: if(Short.parseShort(v)<0) this.signed=true; break;
+					case INT: if(Integer.parseInt(v)<0) this.signed=true; break;
+					case LONG: if(Long.parseLong(v)<0) this.signed=true; break;
+					case BIGINTEGER: if(new BigInteger(v).compareTo(BigInteger.ZERO)<0) this.signed=true; break;
+					case FLOAT: if(Float.parseFloat(v)<0) this.signed=true; break;
+					case DOUBLE: if(Double.parseDouble(v)<0) this.signed=true; break;
+					case BIGDECIMAL: if(new BigDecimal(v).compareTo(BigDecimal.ZERO)<0) this.signed=true; break;
+					default: return false;
+					}
+				return true;
+				}
+			catch(Exception err)
+				{
+				return false;
+				}
+			}
+		
+		void add(String v)
+			{
+			if(v.equalsIgnoreCase("null") || v.equalsIgnoreCase("nill"))
+				{
+				this.nillable=true;
+				return;
+				}
+			else if(v.isEmpty())
+				{
+				this.empty=true;
+				return;
+				}
+			
+			if(this.values.size()<255)
+				{
+				this.values.add(v);
+				}
+			this.length=Math.max(this.length, v.length());
+			if(this.allBoolean && !(v.equalsIgnoreCase("true") || v.equalsIgnoreCase("false")))
+				{
+				this.allBoolean=false;
+				}
+			if(v.length()!=1) this.allChar=false;
+			
+			/* walks up the numeric types, from the smallest one accepting the previous values */
+			while(this.allNumeric && !accept(NUMERIC.get(this.numeric),v))
+				{
+				if(this.numeric+1==NUMERIC.size())
+					{
+					this.allNumeric=false;
+					}
+				else
+					{
+					this.numeric++;
+					}
+				}
+			updateType();
+			}
+		
+		private void updateType()
+			{
+			if(this.allBoolean)
+				{
+				this.type=Type.BOOLEAN;
+				}
+			else if(this.allNumeric)
+				{
+				this.type=NUMERIC.get(this.numeric);
+				}
+			else if(this.allChar)
+				{
+				this.type=Type.CHAR;
+				}
+			else
+				{
+				this.type=Type.STRING;
+				}
+			}
+		
+		/** merges the column of another part of the file */
+		void merge(Column other)
+			{
+			this.signed|=other.signed;
+			this.nillable|=other.nillable;
+			this.empty|=other.empty;
+			this.allBoolean&=other.allBoolean;
+			this.allChar&=other.allChar;
+			this.allNumeric&=other.allNumeric;
+			this.numeric=Math.max(this.numeric, other.numeric);
+			this.length=Math.max(this.length, other.length);
+			for(String v:other.values)
+				{
+				if(this.values.size()>=255) break;
+				this.values.add(v);
+				}
+			updateType();
+			}
 		}
 	
 	private void dump() throws XMLStreamException
@@ -40,6 +180,10 @@ public class TsvToSchema
 		w.writeStartElement("schema");
 		w.writeAttribute("columns", String.valueOf(this.columns.size()));
 		w.writeAttribute("rows", String.valueOf(this.countLines));
+		if(this.sampleSize>0)
+			{
+			w.writeAttribute("sampled", "true");
+			}
 		for(Column c:this.columns)
 			{
 			w.writeStartElement("column");
@@ -81,204 +225,279 @@ public class TsvToSchema
 		
 		w.writeEndElement();
 		w.writeEndDocument();
+		w.flush();
+		}
+	
+	/** adds a line: its fields are given to the columns without being collected */
+	private void scanLine(String line)
+		{
+		++countLines;
+		boolean first=(this.columns==null);
+		if(first) this.columns=new ArrayList<TsvToSchema.Column>();
+		int index=0;
+		int prev=0;
+		for(int t=0;t<=line.length();++t)
+			{
+			if(t==line.length() ||  this.delim==line.charAt(t))
+				{
+				if(index==this.columns.size())
+					{
+					Column c=new Column();
+					c.name="column"+(index+1);
+					/* this column was missing in the previous lines */
+					c.empty=!first;
+					this.columns.add(c);
+					}
+				this.columns.get(index++).add(line.substring(prev,t));
+				prev=t+1;
+				}
+			}
+		/* short line */
+		while(index< this.columns.size())
+			{
+			this.columns.get(index++).empty=true;
+			}
+		}
+	
+	/** merges the result of the following part of the input */
+	private void merge(TsvToSchema other)
+		{
+		if(other.columns==null) return;
+		if(this.columns==null)
+			{
+			this.columns=other.columns;
+			this.countLines=other.countLines;
+			return;
+			}
+		for(int i=0;i< Math.max(this.columns.size(),other.columns.size());++i)
+			{
+			if(i==this.columns.size())
+				{
+				Column c=other.columns.get(i);
+				c.empty=true;
+				this.columns.add(c);
+				}
+			else if(i>=other.columns.size())
+				{
+				this.columns.get(i).empty=true;
+				}
+			else
+				{
+				this.columns.get(i).merge(other.columns.get(i));
+				}
+			}
+		this.countLines+=other.countLines;
+		}
+	
+	private TsvToSchema newPart()
+		{
+		TsvToSchema part=new TsvToSchema();
+		part.delim=this.delim;
+		return part;
 		}
 	
 	private void scan(BufferedReader in) throws IOException
 		{
-		
-		
 		String line;
 		while((line=in.readLine())!=null)
 			{
-			++countLines;
-			List<String> tokens=new ArrayList<String>();
-			int prev=0;
-			int t=0;
-			while(t<=line.length())
+			scanLine(line);
+			}
+		}
+	
+	/** scans the bytes [start,end[ of a file, both are the beginning of a line */
+	private class ChunkScanner implements Callable<TsvToSchema>
+		{
+		private final File file;
+		private final long start;
+		private final long end;
+		ChunkScanner(File file,long start,long end)
+			{
+			this.file=file;
+			this.start=start;
+			this.end=end;
+			}
+		@Override
+		public TsvToSchema call() throws Exception
+			{
+			TsvToSchema part=newPart();
+			final FileInputStream fin=new FileInputStream(this.file);
+			try
 				{
-				if(t==line.length() ||  this.delim==line.charAt(t))
+				fin.getChannel().position(this.start);
+				InputStream in=new FilterInputStream(new BufferedInputStream(fin,BUFFER_SIZE))
 					{
-					tokens.add(line.substring(prev,t));
-					if(t==line.length()) break;
-					prev=t+1;
-					t=prev;
-					continue;
-					}
-				++t;
+					private long remain=end-start;
+					@Override
+					public int read() throws IOException
+						{
+						if(remain<=0) return -1;
+						int c=super.read();
+						if(c!=-1) remain--;
+						return c;
+						}
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException
+						{
+						if(remain<=0) return -1;
+						int n=super.read(b, off, (int)Math.min(len, remain));
+						if(n>0) remain-=n;
+						return n;
+						}
+					};
+				part.scan(new BufferedReader(new InputStreamReader(in,charset)));
 				}
-			if(columns==null)
+			finally
 				{
-				columns=new ArrayList<TsvToSchema.Column>(tokens.size());
-				for(int i=0;i< tokens.size();++i)
-					{
-					Column c=new Column();
-					c.name="column"+(i+1);
-					columns.add(c);
-					}
+				fin.close();
 				}
-			else while(this.columns.size()< tokens.size());
+			return part;
+			}
+		}
+	
+	/** returns the offset of the line following the byte 'pos' */
+	private static long nextLine(RandomAccessFile raf,long pos) throws IOException
+		{
+		if(pos<=0) return 0L;
+		byte buffer[]=new byte[BUFFER_SIZE];
+		raf.seek(pos-1);
+		for(;;)
+			{
+			int n=raf.read(buffer);
+			if(n==-1) return raf.length();
+			for(int i=0;i< n;++i)
 				{
-				Column c=new Column();
-				c.name="column"+(this.columns.size()+1);
-				c.empty=true;
-				columns.add(c);
+				if(buffer[i]=='\n') return pos+i;
 				}
-			
-					
-				
-				
-			for(int i=0;i< columns.size();++i)
-				{
-				Column c=columns.get(i);
-				String v=tokens.get(i);
-				if(v.equalsIgnoreCase("null") || v.equalsIgnoreCase("nill"))
-					{
-					c.nillable=true;
-					continue;
-					}
-				else if(v.isEmpty())
+			pos+=n;
+			}
+		}
+	
+	/** splits the file at line boundaries and scans the parts in parallel */
+	private void scan(File file) throws IOException,InterruptedException
+		{
+		List<long[]> chunks=new ArrayList<long[]>();
+		RandomAccessFile raf=new RandomAccessFile(file, "r");
+		try
+			{
+			long length=raf.length();
+			int nChunks=(int)Math.max(1L, Math.min(this.nThreads*4L, length/(BUFFER_SIZE*16L)));
+			long prev=0L;
+			for(int i=1;i<=nChunks;++i)
+				{
+				long end=(i==nChunks?length:nextLine(raf, (length/nChunks)*i));
+				if(end<=prev) continue;
+				chunks.add(new long[]{prev,end});
+				prev=end;
+				}
+			}
+		finally
+			{
+			raf.close();
+			}
+		ExecutorService executor=Executors.newFixedThreadPool(this.nThreads);
+		try
+			{
+			List<Future<TsvToSchema>> parts=new ArrayList<Future<TsvToSchema>>(chunks.size());
+			for(long chunk[]:chunks)
+				{
+				parts.add(executor.submit(new ChunkScanner(file, chunk[0], chunk[1])));
+				}
+			/* merged in the order of the file: the first line defines the columns */
+			for(Future<TsvToSchema> part:parts)
+				{
+				try
 					{
-					c.empty=true;
-					continue;
+					merge(part.get());
 					}
-				
-				if(c.values.size()<255)
+				catch(ExecutionException err)
 					{
-					c.values.add(v);
+					throw new IOException(err.getCause());
 					}
-				
-				
-				for(;;)
+				}
+			}
+		finally
+			{
+			executor.shutdownNow();
+			}
+		}
+	
+	/**
+	 * scans 'sampleSize' lines starting at random offsets of the file: the time
+	 * doesn't depend on the size of the file. The long lines are more likely to be
+	 * chosen.
+	 */
+	private void sample(File file) throws IOException
+		{
+		RandomAccessFile raf=new RandomAccessFile(file, "r");
+		try
+			{
+			long length=raf.length();
+			Random random=new Random(this.seed);
+			long offsets[]=new long[this.sampleSize];
+			for(int i=0;i< offsets.length;++i)
+				{
+				offsets[i]=(long)(random.nextDouble()*length);
+				}
+			/* the first line defines the columns */
+			if(offsets.length>0) offsets[0]=0L;
+			Arrays.sort(offsets);
+			ByteArrayOutputStream line=new ByteArrayOutputStream();
+			for(long offset:offsets)
+				{
+				offset=nextLine(raf, offset);
+				if(offset>=length) continue;
+				raf.seek(offset);
+				line.reset();
+				byte buffer[]=new byte[BUFFER_SIZE];
+				int n;
+				boolean eol=false;
+				while(!eol && (n=raf.read(buffer))!=-1)
 					{
-					Type old=c.type;
-					switch(c.type)
-						{
-						case BOOLEAN:
-								{
-								if(!(v.equalsIgnoreCase("true") || v.equalsIgnoreCase("false")))
-									{
-									c.type=Type.BYTE;
-									}
-								break;
-								}
-						case BYTE:
-							{
-							try	{	
-								byte b=Byte.parseByte(v);
-								if(b<0) c.signed=true;
-								}
-							catch(Exception err)
-								{
-								c.type=Type.CHAR;
-								}
-							break;
-							}
-						case CHAR:
-							{
-							if(v.length()!=1) 
-								{
-								c.type=Type.SHORT;
-								break;
-								}
-							break;
-							}
-						case SHORT:
-							{
-							try	{	
-								short o=Short.parseShort(v);
-								if(o<0) c.signed=true;
-								}
-							catch(Exception err)
-								{
-								c.type=Type.INT;
-								}
-							break;
-							}
-						case INT:
-							{
-							try	{	
-								int o=Integer.parseInt(v);
-								if(o<0) c.signed=true;
-								}
-							catch(Exception err)
-								{
-								c.type=Type.LONG;
-								}
-							break;
-							}
-						case LONG:
-							{
-							try	{	
-								long o=Long.parseLong(v);
-								if(o<0) c.signed=true;
-								}
-							catch(Exception err)
-								{
-								c.type=Type.BIGINTEGER;
-								}
-							break;
-							}
-						case BIGINTEGER:
-							{
-							try	{	
-								BigInteger o=new BigInteger(v);
-								if(o.compareTo(BigInteger.ZERO)<0) c.signed=true;
-								c.length=Math.max(c.length, v.length());
-								}
-							catch(Exception err)
-								{
-								c.type=Type.FLOAT;
-								}
-							break;
-							}
-						case FLOAT:
-							{
-							try	{	
-								float o=Float.parseFloat(v);
-								if(o<0) c.signed=true;
-								}
-							catch(Exception err)
-								{
-								c.type=Type.DOUBLE;
-								}
-							break;
-							}
-						case DOUBLE:
-							{
-							try	{	
-								double o=Double.parseDouble(v);
-								if(o<0) c.signed=true;
-								}
-							catch(Exception err)
-								{
-								c.type=Type.BIGDECIMAL;
-								}
-							break;
-							}
-						case BIGDECIMAL:
-							{
-							try	{	
-								BigDecimal o=new BigDecimal(v);
-								if(o.compareTo(BigDecimal.ZERO)<0) c.signed=true;
-								c.length=Math.max(c.length, v.length());
-								}
-							catch(Exception err)
-								{
-								c.type=Type.STRING;
-								}
-							break;
-							}
-						case STRING://through
-						default:
-							{
-							
-							c.length=Math.max(c.length, v.length());
-							}
-						}
-					if(old.equals(c.type)) break;
+					int i=0;
+					while(i< n && buffer[i]!='\n') ++i;
+					line.write(buffer, 0, i);
+					eol=(i< n);
 					}
+				String s=new String(line.toByteArray(),this.charset);
+				if(s.endsWith("\r")) s=s.substring(0, s.length()-1);
+				scanLine(s);
 				}
 			}
+		finally
+			{
+			raf.close();
+			}
+		}
+	
+	/** keeps a uniform sample of 'sampleSize' lines of a stream (reservoir sampling) */
+	private void sample(BufferedReader in) throws IOException
+		{
+		Random random=new Random(this.seed);
+		String first=in.readLine();
+		if(first==null) return;
+		List<String> reservoir=new ArrayList<String>(Math.min(this.sampleSize,100000));
+		String line;
+		long n=0L;
+		while((line=in.readLine())!=null)
+			{
+			++n;
+			if(reservoir.size()+1< this.sampleSize)
+				{
+				reservoir.add(line);
+				}
+			else
+				{
+				long r=(long)(random.nextDouble()*n);
+				if(r< reservoir.size()) reservoir.set((int)r, line);
+				}
+			}
+		scanLine(first);
+		for(String s:reservoir) scanLine(s);
+		}
+	
+	private void printSql()
+		{
 		System.out.println("create table __TABLE__NAME\n\t(");
 		for(int i=0;i< this.columns.size();++i)
 			{
@@ -373,12 +592,29 @@ public class TsvToSchema
 					System.err.println("Pierre Lindenbaum PhD. 2013");
 					System.err.println("Options:");
 					System.err.println(" -h help; This screen.");
+					System.err.println(" -d (char) delimiter. Default: tab.");
+					System.err.println(" -t (int) number of threads scanning a file ("+this.nThreads+").");
+					System.err.println(" -s (int) only scan a sample of this number of lines. Default: scan everything.");
+					System.err.println(" -seed (long) random seed for -s ("+this.seed+").");
+					System.err.println("(stdin|file)");
 					return;
 					}
 				else if(args[optind].equals("-d") && optind+1<args.length)
 					{
 					this.delim=args[++optind].charAt(0);
 					}
+				else if(args[optind].equals("-t") && optind+1<args.length)
+					{
+					this.nThreads=Math.max(1,Integer.parseInt(args[++optind]));
+					}
+				else if(args[optind].equals("-s") && optind+1<args.length)
+					{
+					this.sampleSize=Integer.parseInt(args[++optind]);
+					}
+				else if(args[optind].equals("-seed") && optind+1<args.length)
+					{
+					this.seed=Long.parseLong(args[++optind]);
+					}
 				else if(args[optind].equals("--"))
 					{
 					optind++;
@@ -395,7 +631,37 @@ public class TsvToSchema
 					}
 				++optind;
 				}
-			scan(new BufferedReader(new InputStreamReader(System.in)));
+			if(optind==args.length)
+				{
+				BufferedReader in=new BufferedReader(new InputStreamReader(System.in,this.charset));
+				if(this.sampleSize>0)
+					{
+					sample(in);
+					}
+				else
+					{
+					scan(in);
+					}
+				}
+			else if(optind+1==args.length)
+				{
+				File file=new File(args[optind]);
+				if(this.sampleSize>0)
+					{
+					sample(file);
+					}
+				else
+					{
+					scan(file);
+					}
+				}
+			else
+				{
+				System.err.println("Illegal number of arguments");
+				return;
+				}
+			if(this.columns==null) this.columns=new ArrayList<Column>();
+			printSql();
 			dump();
 			}
 		public static void main(String[] args) throws Exception
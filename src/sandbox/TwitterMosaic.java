@@ -21,7 +21,6 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -83,8 +82,8 @@ public class TwitterMosaic
 			LOG.info(u.imageUrl);
 			try
 				{
-				BufferedImage icn=ImageIO.read(new URL(u.imageUrl));
-				g.drawImage(icn, x*ICON_SIZE, y*ICON_SIZE, null);
+				BufferedImage icn=ThumbnailCache.getInstance().fit(u.imageUrl, ICON_SIZE, ICON_SIZE);
+				if(icn!=null) g.drawImage(icn, x*ICON_SIZE, y*ICON_SIZE, null);
 				}
 			catch(java.awt.color.CMMException err)
 				{
@@ -21,26 +21,37 @@ xsi:schemaLocation="http://www.springframework.org/schema/beans http://www.sprin
 </beans>
 */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
@@ -51,12 +62,14 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
@@ -68,11 +81,14 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.support.DefaultListableBeanFactory;
 import org.springframework.beans.factory.xml.XmlBeanFactory;
 import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.tidy.Tidy;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -90,6 +106,296 @@ public class XslHandler extends AbstractHandler
 	private String XSL_PARAM="xsl";
 	private String ID_PARAM="id";
 	private File beanXmlFile=null;
+	/** spring context loaded from beanXmlFile, reloaded when the file changes */
+	private ConfigurableApplicationContext beanContext=null;
+	private long beanContextLastModified=0L;
+	/** incremented each time the spring context is (re)loaded */
+	private long beanContextGeneration=0L;
+	/** compiled stylesheets */
+	private final TemplatesCache templatesCache=new TemplatesCache(64);
+	/** time-to-live of an upstream document before it is revalidated */
+	private long upstreamTtlMillisec=60L*1000L;
+	/** upstream documents */
+	private final UpstreamCache upstreamCache=new UpstreamCache(128);
+	/** transformed documents */
+	private final Map<String,CachedOutput> outputCache=new LinkedHashMap<String,CachedOutput>(128,0.75f,true)
+		{
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,CachedOutput> eldest)
+			{
+			return size()>128;
+			}
+		};
+	
+	/** HTTP client shared by all the requests, its connections are pooled */
+	private static final CloseableHttpClient HTTP_CLIENT;
+	static {
+		final PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+		cm.setMaxTotal(100);
+		cm.setDefaultMaxPerRoute(20);
+		HTTP_CLIENT = HttpClients.custom().setConnectionManager(cm).build();
+		}
+	
+	/** an upstream document, immutable */
+	private static class Upstream
+		{
+		final byte content[];
+		final String etag;
+		final String lastModified;
+		/** when it was fetched or revalidated */
+		final long checked;
+		/** changes each time a new content is fetched */
+		final long version;
+		
+		Upstream(byte content[],String etag,String lastModified,long checked,long version)
+			{
+			this.content=content;
+			this.etag=etag;
+			this.lastModified=lastModified;
+			this.checked=checked;
+			this.version=version;
+			}
+		
+		InputStream openStream()
+			{
+			return new ByteArrayInputStream(this.content);
+			}
+		}
+	
+	/**
+	 * bounded LRU cache of the upstream documents, keyed by URL. A document
+	 * younger than the TTL is used as is; an older one is revalidated with
+	 * a conditional GET (If-None-Match / If-Modified-Since).
+	 */
+	private static class UpstreamCache
+		{
+		private final AtomicLong versions=new AtomicLong(0L);
+		private final Map<String,Upstream> url2upstream;
+		
+		UpstreamCache(final int capacity)
+			{
+			this.url2upstream=new LinkedHashMap<String,Upstream>(capacity,0.75f,true)
+				{
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,Upstream> eldest)
+					{
+					return size()>capacity;
+					}
+				};
+			}
+		
+		/**
+		 * @param anyScheme if false, only http and https URLs can be fetched. As
+		 * before the cache, only the XML input opens the other URLs (file:, ftp:...)
+		 */
+		Upstream fetch(final String url,final long ttlMillisec,final boolean anyScheme) throws IOException
+			{
+			final boolean is_http=url.startsWith("http://") || url.startsWith("https://");
+			if(!is_http && !anyScheme)
+				{
+				throw new IOException("Cannot fetch "+url+" : not a http(s) URL");
+				}
+			final long now=System.currentTimeMillis();
+			Upstream cached;
+			synchronized(this.url2upstream)
+				{
+				cached=this.url2upstream.get(url);
+				}
+			if(cached!=null && now-cached.checked< ttlMillisec) return cached;
+			
+			Upstream upstream;
+			if(is_http)
+				{
+				upstream=fetchHttp(url,cached,now);
+				}
+			else
+				{
+				/* not HTTP: no validator, fetched again when the TTL expires */
+				InputStream is=null;
+				try
+					{
+					is=new URL(url).openStream();
+					upstream=new Upstream(readAll(is),null,null,now,versions.incrementAndGet());
+					}
+				finally
+					{
+					IOUtils.close(is);
+					}
+				}
+			synchronized(this.url2upstream)
+				{
+				this.url2upstream.put(url,upstream);
+				}
+			return upstream;
+			}
+		
+		private Upstream fetchHttp(final String url,final Upstream cached,final long now) throws IOException
+			{
+			CloseableHttpResponse httpResponse=null;
+			try {
+				final HttpGet httpget = new HttpGet(url);
+				if(cached!=null && cached.etag!=null)
+					{
+					httpget.setHeader("If-None-Match",cached.etag);
+					}
+				if(cached!=null && cached.lastModified!=null)
+					{
+					httpget.setHeader("If-Modified-Since",cached.lastModified);
+					}
+				httpResponse = HTTP_CLIENT.execute(httpget);
+				final int status=httpResponse.getStatusLine().getStatusCode();
+				final HttpEntity httpEntity = httpResponse.getEntity();
+				if(status==HttpServletResponse.SC_NOT_MODIFIED && cached!=null)
+					{
+					EntityUtils.consumeQuietly(httpEntity);
+					return new Upstream(cached.content,cached.etag,cached.lastModified,now,cached.version);
+					}
+				if(status!=HttpServletResponse.SC_OK || httpEntity==null)
+					{
+					EntityUtils.consumeQuietly(httpEntity);
+					throw new IOException("Cannot fetch "+url+" : "+httpResponse.getStatusLine());
+					}
+				final byte content[]=EntityUtils.toByteArray(httpEntity);
+				final Header etag=httpResponse.getFirstHeader("ETag");
+				final Header lastModified=httpResponse.getFirstHeader("Last-Modified");
+				return new Upstream(
+						content,
+						etag==null?null:etag.getValue(),
+						lastModified==null?null:lastModified.getValue(),
+						now,
+						versions.incrementAndGet()
+						);
+			} finally
+				{
+				IOUtils.close(httpResponse);
+				}
+			}
+		
+		private static byte[] readAll(final InputStream is) throws IOException
+			{
+			final ByteArrayOutputStream baos=new ByteArrayOutputStream();
+			final byte buffer[]=new byte[8192];
+			int n;
+			while((n=is.read(buffer))!=-1) baos.write(buffer,0,n);
+			return baos.toByteArray();
+			}
+		}
+	
+	/** a transformed document, valid for a version of the upstream document and a stylesheet */
+	private static class CachedOutput
+		{
+		long upstreamVersion;
+		/** generation of the spring context of the config, -1 if the config came from the parameters */
+		long contextGeneration;
+		Templates templates;
+		String contentType;
+		byte content[];
+		}
+	
+	/**
+	 * bounded LRU cache of the compiled stylesheets, keyed by the URI of the
+	 * XSL and its last-modified time. A Templates is thread-safe: each
+	 * request only creates a new Transformer from it.
+	 */
+	private static class TemplatesCache
+		{
+		/** interval between two checks of the last-modified time of a remote stylesheet */
+		private static final long REMOTE_CHECK_MILLISEC=60L*1000L;
+		private final TransformerFactory factory=TransformerFactory.newInstance();
+		private final Map<String,CachedTemplates> uri2templates;
+		
+		private static class CachedTemplates
+			{
+			Templates templates;
+			long lastModified;
+			long lastChecked;
+			}
+		
+		TemplatesCache(final int capacity)
+			{
+			this.uri2templates=new LinkedHashMap<String,CachedTemplates>(capacity,0.75f,true)
+				{
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,CachedTemplates> eldest)
+					{
+					return size()>capacity;
+					}
+				};
+			}
+		
+		private static boolean isRemote(final String uri)
+			{
+			return	uri.startsWith("http://") ||
+					uri.startsWith("https://") ||
+					uri.startsWith("ftp://");
+			}
+		
+		/** last-modified time of the stylesheet, or 0 if unknown */
+		private static long lastModified(final String uri)
+			{
+			try
+				{
+				if(uri.startsWith("file:")) return new File(new URI(uri)).lastModified();
+				if(!isRemote(uri)) return new File(uri).lastModified();
+				final URLConnection con=new URL(uri).openConnection();
+				if(con instanceof HttpURLConnection)
+					{
+					HttpURLConnection.class.cast(con).setRequestMethod("HEAD");
+					}
+				try
+					{
+					return con.getLastModified();
+					}
+				finally
+					{
+					if(con instanceof HttpURLConnection) HttpURLConnection.class.cast(con).disconnect();
+					}
+				}
+			catch(final Exception err)
+				{
+				LOG.warn("Cannot get last-modified of "+uri,err);
+				return 0L;
+				}
+			}
+		
+		Templates get(final XslConfig config) throws TransformerConfigurationException
+			{
+			final String uri=config.getXsl();
+			final long now=System.currentTimeMillis();
+			CachedTemplates cached;
+			synchronized(this.uri2templates)
+				{
+				cached=this.uri2templates.get(uri);
+				}
+			if(cached!=null && isRemote(uri) && now-cached.lastChecked< REMOTE_CHECK_MILLISEC)
+				{
+				return cached.templates;
+				}
+			final long lastModified=lastModified(uri);
+			if(cached!=null && cached.lastModified==lastModified)
+				{
+				cached.lastChecked=now;
+				return cached.templates;
+				}
+			LOG.info("compiling "+uri);
+			final CachedTemplates compiled=new CachedTemplates();
+			/* TransformerFactory is not thread-safe */
+			synchronized(this.factory)
+				{
+				compiled.templates=this.factory.newTemplates(config.getStylesheet());
+				}
+			compiled.lastModified=lastModified;
+			compiled.lastChecked=now;
+			synchronized(this.uri2templates)
+				{
+				this.uri2templates.put(uri,compiled);
+				}
+			return compiled.templates;
+			}
+		}
 	
 	public static class XslConfig
 		{
@@ -164,42 +470,11 @@ public class XslHandler extends AbstractHandler
 		
 		
 		
-		private Document fetchJson() throws IOException
+		private Document parseHtml(final Upstream upstream) throws IOException
 			{
-			CloseableHttpClient httpclient=null;
-			CloseableHttpResponse httpResponse=null;
 			InputStream is=null;
-			HttpEntity httpEntity;
 			try {
-				httpclient = HttpClients.createDefault();
-				final HttpGet httpget = new HttpGet(this.getUrl());				
-				httpResponse = httpclient.execute(httpget);
-				httpEntity = httpResponse.getEntity();
-				is=httpEntity.getContent();
-				final Document dom = new Json2Dom().parse(is);				
-				EntityUtils.consumeQuietly(httpEntity);
-				return dom;
-			} catch (Exception e) {
-				e.printStackTrace();
-				throw new IOException(e);
-			} finally
-				{
-				IOUtils.close(is,httpResponse,httpclient);
-				}
-			}
-		
-		private Document fetchHtml() throws IOException
-			{
-			CloseableHttpClient httpclient=null;
-			CloseableHttpResponse httpResponse=null;
-			InputStream is=null;
-			HttpEntity httpEntity;
-			try {
-				httpclient = HttpClients.createDefault();
-				final HttpGet httpget = new HttpGet(this.getUrl());				
-				httpResponse = httpclient.execute(httpget);
-				httpEntity = httpResponse.getEntity();
-				is=httpEntity.getContent();
+				is=upstream.openStream();
 				final Tidy tidy = new Tidy();
 				tidy.setXmlOut(true);
 				tidy.setShowErrors(0);
@@ -214,38 +489,44 @@ public class XslHandler extends AbstractHandler
 						new StreamResult(System.err)
 						);*/
 				
-				EntityUtils.consumeQuietly(httpEntity);
 				return dom;
 			} catch (Exception e) {
 				e.printStackTrace();
 				throw new IOException(e);
 			} finally
 				{
-				IOUtils.close(is,httpResponse,httpclient);
+				IOUtils.close(is);
 				}
 			}
 
-		private Document fetchXml() throws IOException
-			{
-			try {
-				DocumentBuilderFactory dbf=DocumentBuilderFactory.newInstance();
-				dbf.setNamespaceAware(true);
-				DocumentBuilder db= dbf.newDocumentBuilder();
-				return db.parse(getUrl());
-			} catch (Exception e) {
-				e.printStackTrace();
-				throw new IOException(e);
-			} finally
+		/**
+		 * JSON and XML inputs are streamed: the parser feeds its SAX events
+		 * to the transformer, no W3C Document is built. HTML is cleaned by
+		 * JTidy, which needs a DOM.
+		 */
+		Source parseSource(final Upstream upstream) throws IOException {
+			if(this.inputType==null) inputType="html";
+			if(this.inputType.equalsIgnoreCase("json"))
 				{
+				return new SAXSource(new Json2Sax(),new InputSource(upstream.openStream()));
 				}
+			if(this.inputType.equalsIgnoreCase("xml"))
+				{
+				try {
+					final SAXParserFactory spf=SAXParserFactory.newInstance();
+					spf.setNamespaceAware(true);
+					final XMLReader reader=spf.newSAXParser().getXMLReader();
+					final InputSource inputSource=new InputSource(upstream.openStream());
+					inputSource.setSystemId(getUrl());
+					return new SAXSource(reader,inputSource);
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+				}
+			return new DOMSource(this.parseHtml(upstream));
 			}
-		
-		Document fetchDocument() throws IOException {
-			if(this.inputType==null) inputType="html";
-			if(this.inputType.equalsIgnoreCase("json")) return this.fetchJson();
-			if(this.inputType.equalsIgnoreCase("xml")) return this.fetchXml();
-			return this.fetchHtml();
-			}
+
+
 		
 		
 		
@@ -255,6 +536,27 @@ public class XslHandler extends AbstractHandler
 		this.beanXmlFile = beanXmlFile;
 	}
 	
+	public void setUpstreamTtl(long seconds) {
+		this.upstreamTtlMillisec = seconds*1000L;
+	}
+	
+	/** returns the spring context, (re)loaded if beanXmlFile was modified */
+	private synchronized ApplicationContext getBeanContext()
+		{
+		final long lastModified=this.beanXmlFile.lastModified();
+		if(this.beanContext==null || this.beanContextLastModified!=lastModified)
+			{
+			LOG.info("loading "+this.beanXmlFile);
+			final ConfigurableApplicationContext ctx = new FileSystemXmlApplicationContext(
+					this.beanXmlFile.toURI().toASCIIString());
+			if(this.beanContext!=null) this.beanContext.close();
+			this.beanContext=ctx;
+			this.beanContextLastModified=lastModified;
+			this.beanContextGeneration++;
+			}
+		return this.beanContext;
+		}
+	
 	
 	
 	@Override
@@ -266,12 +568,17 @@ public class XslHandler extends AbstractHandler
 			throws IOException, ServletException
 		{
 		XslConfig config= null;
+		long contextGeneration=-1L;
 		final String configId=request.getParameter(ID_PARAM);
 		if(configId!=null && !configId.isEmpty() && beanXmlFile!=null)
 			{
 			try {
-				ApplicationContext beanFactory = new FileSystemXmlApplicationContext(
-						this.beanXmlFile.toURI().toASCIIString());
+				final ApplicationContext beanFactory;
+				synchronized(this)
+					{
+					beanFactory = getBeanContext();
+					contextGeneration = this.beanContextGeneration;
+					}
 				config = XslConfig.class.cast(beanFactory.getBean(configId));
 			} catch(Exception err) {
 				config= null;
@@ -304,24 +611,52 @@ public class XslHandler extends AbstractHandler
 			}
 		
 		try {
-			Document dom = config.fetchDocument();
-			
-			
-		     final TransformerFactory factory = TransformerFactory.newInstance();
-
-			final Transformer  transformer = factory.newTransformer(config.getStylesheet());
-	        
+			final Upstream upstream = this.upstreamCache.fetch(
+					config.getUrl(),
+					this.upstreamTtlMillisec,
+					"xml".equalsIgnoreCase(config.getInputType())
+					);
+			final Templates templates = this.templatesCache.get(config);
+			/* the output depends on the config (or the url+xsl) and the context it was loaded from, the upstream version and the stylesheet */
+			final String outputKey = (configId!=null && !configId.isEmpty()?
+					"id:"+configId:
+					"url:"+config.getUrl()+"\t"+config.getXsl()
+					);
+			CachedOutput output;
+			synchronized(this.outputCache)
+				{
+				output = this.outputCache.get(outputKey);
+				}
+			if(output==null ||
+				output.upstreamVersion!=upstream.version ||
+				output.contextGeneration!=contextGeneration ||
+				output.templates!=templates)
+				{
+				final Transformer  transformer = templates.newTransformer();
+				final Source source = config.parseSource(upstream);
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		        transformer.transform(
+		        		source,
+		        		new StreamResult(baos)
+		        		);
+		        output = new CachedOutput();
+		        output.upstreamVersion = upstream.version;
+		        output.contextGeneration = contextGeneration;
+		        output.templates = templates;
+		        output.contentType = config.getContentType();
+		        output.content = baos.toByteArray();
+		        synchronized(this.outputCache)
+					{
+					this.outputCache.put(outputKey, output);
+					}
+				}
 			
-			final Source domSource = new DOMSource(dom);
-	        response.setContentType(config.getContentType());
+	        response.setContentType(output.contentType);
 	        response.setStatus(HttpServletResponse.SC_OK);
 	        baseRequest.setHandled(true);
 	        
 	        final OutputStream out = response.getOutputStream();
-	        transformer.transform(
-	        		domSource,
-	        		new StreamResult( out)
-	        		);
+	        out.write(output.content);
 	        out.flush();
 	        out.close();
 			}
@@ -349,6 +684,7 @@ public class XslHandler extends AbstractHandler
 			
 			options.addOption(Option.builder("p").hasArg().desc("port").argName("PORT").build());
 			options.addOption(Option.builder("f").hasArg().desc("bean-factory.xml").argName("XML").build());
+			options.addOption(Option.builder("ttl").hasArg().desc("seconds before an upstream document is revalidated. Default: 60").argName("SECONDS").build());
 			cmd = parser.parse(options, args);
 			}
 		catch(ParseException err)
@@ -361,6 +697,7 @@ public class XslHandler extends AbstractHandler
 		XslHandler xslHandler=new XslHandler();
 		int port=8080;
 		if(cmd.hasOption("p")) port=Integer.parseInt(cmd.getOptionValue("p"));
+		if(cmd.hasOption("ttl")) xslHandler.setUpstreamTtl(Long.parseLong(cmd.getOptionValue("ttl")));
 		if(cmd.hasOption("f"))
 			{
 			xslHandler.setBeanXmlFile(new File(cmd.getOptionValue("f")));